@@ -0,0 +1,311 @@
+package nl.vu.cs.cn;
+
+import java.util.Arrays;
+
+/**
+ * This class is a model based congestion control like BBR (Cardwell et al.,
+ * "BBR: Congestion-Based Congestion Control", ACM Queue 2016). Instead of
+ * reacting to losses, it estimates the bottleneck bandwidth (the maximum
+ * delivery rate of the last 10 round trips) and the round trip propagation
+ * time (the minimum round trip time of the last 10 seconds). Packets are paced
+ * at the bottleneck bandwidth and the congestion window is twice the
+ * bandwidth-delay product, so the queues on the path stay short.
+ * <br/>
+ * The connection goes through the phases of BBR: STARTUP doubles the rate
+ * each round trip until the bandwidth stops growing, DRAIN empties the queue,
+ * which STARTUP created, PROBE_BW cycles the pacing rate around the
+ * bottleneck bandwidth to detect more bandwidth and PROBE_RTT reduces the
+ * window for a moment to measure the minimum round trip time again.
+ */
+public class BBRCongestionControl implements CongestionControl {
+
+	/** The phases of BBR. */
+	private enum Mode {
+		STARTUP, DRAIN, PROBE_BW, PROBE_RTT
+	}
+
+	/** The gain of STARTUP (2/ln(2)), which doubles the rate each round trip. */
+	private static final double HIGH_GAIN = 2.885;
+
+	/** The pacing gains of PROBE_BW, each used for one round trip. */
+	private static final double[] PACING_GAIN_CYCLE = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+
+	/** The gain of the congestion window in PROBE_BW (compensates delayed ACKs). */
+	private static final double CWND_GAIN = 2;
+
+	/** The amount of round trips, of which the maximum delivery rate is the bottleneck bandwidth. */
+	private static final int BANDWIDTH_FILTER_ROUNDS = 10;
+
+	/** The time (in microseconds), after which the minimum round trip time expires. */
+	private static final long MIN_RTT_WINDOW = 10000000;
+
+	/** The time (in microseconds), which PROBE_RTT keeps the window small. */
+	private static final long PROBE_RTT_DURATION = 200000;
+
+	/** The amount of round trips without 25% more bandwidth, after which STARTUP ends. */
+	private static final int FULL_BANDWIDTH_ROUNDS = 3;
+
+	/** The minimum congestion window in packets. */
+	private static final int MIN_CWND_PACKETS = 4;
+
+	/** The maximum segment size. */
+	private int mss;
+
+	/** The current phase. */
+	private Mode mode;
+
+	/** The maximum delivery rate of each of the last round trips (bytes per second). */
+	private final long[] bandwidthSamples = new long[BANDWIDTH_FILTER_ROUNDS];
+
+	/** The bottleneck bandwidth (bytes per second, 0 before the first sample). */
+	private long bandwidth;
+
+	/** The amount of round trips since the connection opened. */
+	private long rounds;
+
+	/** The delivered bytes, after which the next round trip starts. */
+	private long nextRoundDelivered;
+
+	/** True, if the last delivery rate sample started a new round trip. */
+	private boolean roundStart;
+
+	/** The minimum round trip time (microseconds, 0 before the first sample). */
+	private long minRtt;
+
+	/** The time of the measurement of minRtt (System.nanoTime). */
+	private long minRttStamp;
+
+	/** True, if minRtt expired and is replaced by the next sample. */
+	private boolean minRttExpired;
+
+	/** The bandwidth, which STARTUP has to exceed by 25% to continue. */
+	private long fullBandwidth;
+
+	/** The amount of round trips, in which the bandwidth did not grow. */
+	private int fullBandwidthRounds;
+
+	/** True, if STARTUP found the bottleneck bandwidth. */
+	private boolean filledPipe;
+
+	/** The index in PACING_GAIN_CYCLE. */
+	private int cycleIndex;
+
+	/** The start of the current gain cycle phase (System.nanoTime). */
+	private long cycleStamp;
+
+	/** The end of PROBE_RTT (System.nanoTime, 0 until the window is small enough). */
+	private long probeRttDone;
+
+	/** The congestion window. */
+	private long cwnd;
+
+	/** The congestion window before PROBE_RTT or a timeout, which is restored afterwards. */
+	private long priorCwnd;
+
+	/** The factor of the bottleneck bandwidth, at which packets are paced. */
+	private double pacingGain;
+
+	/** The factor of the bandwidth-delay product, which is the congestion window. */
+	private double cwndGain;
+
+	public BBRCongestionControl() {
+		init(TCP.TcpPacket.MAX_PAYLOAD_LENGTH);
+	}
+
+	@Override
+	public CongestionControl newInstance() {
+		return new BBRCongestionControl();
+	}
+
+	@Override
+	public void init(int mss) {
+		this.mss = mss;
+		Arrays.fill(bandwidthSamples, 0);
+		bandwidth = 0;
+		rounds = 0;
+		nextRoundDelivered = 0;
+		roundStart = false;
+		minRtt = 0;
+		minRttStamp = System.nanoTime();
+		minRttExpired = false;
+		fullBandwidth = 0;
+		fullBandwidthRounds = 0;
+		filledPipe = false;
+		cycleIndex = 0;
+		probeRttDone = 0;
+		cwnd = 2L * mss;
+		priorCwnd = 0;
+		enterStartup();
+	}
+
+	@Override
+	public void onDeliveryRate(long deliveryRate, long delivered, long priorDelivered) {
+		// a round trip ends, when a packet is acknowledged, which was sent after it started
+		roundStart = priorDelivered >= nextRoundDelivered;
+		if (roundStart) {
+			nextRoundDelivered = delivered;
+			rounds++;
+			bandwidthSamples[(int) (rounds % BANDWIDTH_FILTER_ROUNDS)] = 0;
+		}
+
+		// windowed maximum of the delivery rate
+		int slot = (int) (rounds % BANDWIDTH_FILTER_ROUNDS);
+		bandwidthSamples[slot] = Math.max(bandwidthSamples[slot], deliveryRate);
+		bandwidth = 0;
+		for (long sample : bandwidthSamples) {
+			bandwidth = Math.max(bandwidth, sample);
+		}
+
+		// STARTUP ends, when the bandwidth grew less than 25% in three round trips
+		if (roundStart && !filledPipe) {
+			if (bandwidth >= fullBandwidth * 5 / 4) {
+				fullBandwidth = bandwidth;
+				fullBandwidthRounds = 0;
+			}
+			else if (++fullBandwidthRounds >= FULL_BANDWIDTH_ROUNDS) {
+				filledPipe = true;
+			}
+		}
+	}
+
+	@Override
+	public void onRttSample(long rtt) {
+		if (minRtt == 0 || rtt <= minRtt || minRttExpired) {
+			minRtt = rtt;
+			minRttStamp = System.nanoTime();
+			minRttExpired = false;
+		}
+	}
+
+	@Override
+	public void onAck(long ackedBytes, long bytesInFlight) {
+		long now = System.nanoTime();
+		updateMode(now, bytesInFlight);
+
+		// the window grows with the ACKs up to its target (in STARTUP without limit)
+		long target = getTargetWindow(cwndGain);
+		if (filledPipe)
+			cwnd = Math.min(cwnd + ackedBytes, target);
+		else if (cwnd < target || target == 0)
+			cwnd += ackedBytes;
+		cwnd = Math.max(cwnd, (long) MIN_CWND_PACKETS * mss);
+		if (mode == Mode.PROBE_RTT)
+			cwnd = Math.min(cwnd, (long) MIN_CWND_PACKETS * mss);
+	}
+
+	/**
+	 * Moves on to the next phase, if the current one is finished.
+	 *
+	 * @param now
+	 *            System.nanoTime
+	 * @param bytesInFlight
+	 */
+	private void updateMode(long now, long bytesInFlight) {
+		if (mode == Mode.STARTUP && filledPipe) {
+			mode = Mode.DRAIN;
+			pacingGain = 1 / HIGH_GAIN;
+			cwndGain = HIGH_GAIN;
+		}
+		if (mode == Mode.DRAIN && bytesInFlight <= getTargetWindow(1)) {
+			enterProbeBandwidth(now);
+		}
+		if (mode == Mode.PROBE_BW && (now - cycleStamp) / 1000 > minRtt) {
+			// the next phase of the gain cycle after one round trip
+			cycleIndex = (cycleIndex + 1) % PACING_GAIN_CYCLE.length;
+			cycleStamp = now;
+			pacingGain = PACING_GAIN_CYCLE[cycleIndex];
+		}
+
+		// measure the minimum round trip time again, if it expired
+		if (mode != Mode.PROBE_RTT && minRtt > 0 && (now - minRttStamp) / 1000 > MIN_RTT_WINDOW) {
+			mode = Mode.PROBE_RTT;
+			minRttExpired = true;
+			pacingGain = 1;
+			priorCwnd = Math.max(priorCwnd, cwnd);
+			probeRttDone = 0;
+		}
+		if (mode == Mode.PROBE_RTT) {
+			if (probeRttDone == 0 && bytesInFlight <= (long) MIN_CWND_PACKETS * mss) {
+				probeRttDone = now + PROBE_RTT_DURATION * 1000;
+			}
+			else if (probeRttDone != 0 && now - probeRttDone > 0) {
+				minRttStamp = now;
+				minRttExpired = false;
+				cwnd = Math.max(cwnd, priorCwnd);
+				priorCwnd = 0;
+				if (filledPipe)
+					enterProbeBandwidth(now);
+				else
+					enterStartup();
+			}
+		}
+	}
+
+	private void enterStartup() {
+		mode = Mode.STARTUP;
+		pacingGain = HIGH_GAIN;
+		cwndGain = HIGH_GAIN;
+	}
+
+	private void enterProbeBandwidth(long now) {
+		mode = Mode.PROBE_BW;
+		cwndGain = CWND_GAIN;
+		// start in a phase, which neither probes nor drains
+		cycleIndex = 2;
+		cycleStamp = now;
+		pacingGain = PACING_GAIN_CYCLE[cycleIndex];
+	}
+
+	/**
+	 * @param gain
+	 * @return the given factor of the bandwidth-delay product (plus some
+	 *         packets for delayed ACKs), or 0 if there is no estimate yet
+	 */
+	private long getTargetWindow(double gain) {
+		if (bandwidth == 0 || minRtt == 0)
+			return 0;
+		long bdp = bandwidth * minRtt / 1000000;
+		return (long) (gain * bdp) + 3L * mss;
+	}
+
+	@Override
+	public void onDuplicateAck(long bytesInFlight) {
+		// the model does not react to single losses
+	}
+
+	@Override
+	public void onLoss(long bytesInFlight, int duplicateAcks) {
+		// the model does not react to single losses
+	}
+
+	@Override
+	public void onRecoveryEnd(long bytesInFlight) {
+		// restore the window after a timeout
+		if (priorCwnd > 0 && mode != Mode.PROBE_RTT) {
+			cwnd = Math.max(cwnd, priorCwnd);
+			priorCwnd = 0;
+		}
+	}
+
+	@Override
+	public void onTimeout(long bytesInFlight) {
+		// all packets in flight may be lost: start again with one packet
+		priorCwnd = Math.max(priorCwnd, cwnd);
+		cwnd = mss;
+	}
+
+	@Override
+	public long getCongestionWindow() {
+		return cwnd;
+	}
+
+	@Override
+	public long getPacingRate() {
+		if (bandwidth > 0)
+			return (long) (pacingGain * bandwidth);
+		// no delivery rate yet: the initial window per round trip
+		if (minRtt > 0)
+			return (long) (pacingGain * cwnd * 1000000 / minRtt);
+		return 0;
+	}
+}
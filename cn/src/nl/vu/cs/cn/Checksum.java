@@ -0,0 +1,148 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class computes the Internet checksum (the 16 bit one's complement sum
+ * of RFC 1071), which protects the TCP packets.
+ * <br/>
+ * The data is read 8 bytes at a time. The two 32 bit halves of each word are
+ * added to a 64 bit sum without folding the carries, which is done only once
+ * at the end (fold). This gives the same result as adding 16 bit words, since
+ * each carry out of 16 bits is worth 1 in one's complement arithmetic.
+ */
+public class Checksum {
+
+	/**
+	 * Adds the given bytes of a buffer (in network byte order) to a partial
+	 * sum. The bytes must start at an even offset of the checksummed data
+	 * (see swap otherwise).
+	 *
+	 * @param buffer
+	 * @param offset
+	 *            the absolute index of the first byte in the buffer
+	 * @param length
+	 * @param sum
+	 *            the partial sum of the preceding data
+	 * @return the new partial sum (unfolded)
+	 */
+	public static long add(ByteBuffer buffer, int offset, int length, long sum) {
+		int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			long word = buffer.getLong(i);
+			sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+		}
+		if (i + 4 <= end) {
+			sum += buffer.getInt(i) & 0xFFFFFFFFL;
+			i += 4;
+		}
+		if (i + 2 <= end) {
+			sum += buffer.getShort(i) & 0xFFFF;
+			i += 2;
+		}
+		if (i < end) {
+			// an odd byte is padded with a zero byte
+			sum += (buffer.get(i) & 0xFF) << 8;
+		}
+		return sum;
+	}
+
+	/**
+	 * Copies bytes from one buffer to another and adds them to a partial sum
+	 * in the same pass, so each byte is read only once. Like add, the bytes
+	 * must start at an even offset of the checksummed data.
+	 *
+	 * @param src
+	 * @param srcIndex
+	 *            the absolute index of the first byte in src
+	 * @param dst
+	 * @param dstIndex
+	 *            the absolute index in dst, to which the first byte is copied
+	 * @param length
+	 * @param sum
+	 *            the partial sum of the preceding data
+	 * @return the new partial sum (unfolded)
+	 */
+	public static long copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int length, long sum) {
+		int end = srcIndex + length;
+		int i = srcIndex;
+		int j = dstIndex;
+		for (; i + 8 <= end; i += 8, j += 8) {
+			long word = src.getLong(i);
+			dst.putLong(j, word);
+			sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+		}
+		if (i + 4 <= end) {
+			int word = src.getInt(i);
+			dst.putInt(j, word);
+			sum += word & 0xFFFFFFFFL;
+			i += 4;
+			j += 4;
+		}
+		if (i + 2 <= end) {
+			short word = src.getShort(i);
+			dst.putShort(j, word);
+			sum += word & 0xFFFF;
+			i += 2;
+			j += 2;
+		}
+		if (i < end) {
+			byte b = src.get(i);
+			dst.put(j, b);
+			sum += (b & 0xFF) << 8;
+		}
+		return sum;
+	}
+
+	/**
+	 * Swaps the bytes of a partial sum. A sum of bytes, which start at an odd
+	 * offset of the checksummed data, is added swapped (RFC 1071).
+	 *
+	 * @param sum
+	 * @return the swapped 16 bit sum
+	 */
+	public static long swap(long sum) {
+		int folded = fold(sum);
+		return ((folded & 0xFF) << 8) | (folded >>> 8);
+	}
+
+	/**
+	 * Folds the carries of a partial sum into 16 bits.
+	 *
+	 * @param sum
+	 * @return the 16 bit one's complement sum
+	 */
+	public static int fold(long sum) {
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		return (int) sum;
+	}
+
+	/**
+	 * Returns the partial sum of the pseudo header of TCP without the
+	 * length, which is added for each packet. The sum is the same for both
+	 * directions of a connection, since the addresses are only added.
+	 *
+	 * @param sourceIp
+	 * @param destinationIp
+	 * @param protocol
+	 * @return the partial sum (unfolded)
+	 */
+	public static long pseudoHeader(int sourceIp, int destinationIp, int protocol) {
+		return swapAddress(sourceIp) + swapAddress(destinationIp) + protocol;
+	}
+
+	/**
+	 * The IP addresses of the IP layer are in little-endian format, therefore
+	 * they are transformed to big-endian before they are added.
+	 *
+	 * @param address
+	 * @return the sum of the two 16 bit halves of the transformed address
+	 */
+	private static long swapAddress(int address) {
+		return (address >>> 24) + ((address & 0xFF0000) >>> 8)
+				+ ((address & 0xFF00) >>> 8) + ((address & 0xFF) << 8);
+	}
+}
@@ -0,0 +1,116 @@
+package nl.vu.cs.cn;
+
+/**
+ * This interface is the strategy, which limits the amount of data a
+ * connection has in flight, so the connections, which share a network, back
+ * off when it drops packets (congestion control). Each connection has its own
+ * instance, which is notified by the TCP stack about the events, which the
+ * algorithm reacts to.
+ * <br/>
+ * All amounts are in bytes, all times in microseconds. The methods are called
+ * while the connection is locked, so implementations need not be thread safe.
+ */
+public interface CongestionControl {
+
+	/**
+	 * Creates a new instance of the same algorithm (with the same settings)
+	 * for another connection. A server socket uses it for each accepted
+	 * connection.
+	 *
+	 * @return a new instance in its initial state
+	 */
+	CongestionControl newInstance();
+
+	/**
+	 * Resets the algorithm to its initial state, when a connection is opened.
+	 *
+	 * @param mss
+	 *            the maximum segment size of the connection
+	 */
+	void init(int mss);
+
+	/**
+	 * Called when an ACK acknowledges new data.
+	 *
+	 * @param ackedBytes
+	 *            the amount of newly acknowledged bytes
+	 * @param bytesInFlight
+	 *            the amount of unacknowledged bytes after the ACK
+	 */
+	void onAck(long ackedBytes, long bytesInFlight);
+
+	/**
+	 * Called for each duplicate ACK, which reports that a packet arrived
+	 * behind a missing one.
+	 *
+	 * @param bytesInFlight
+	 *            the amount of unacknowledged bytes
+	 */
+	void onDuplicateAck(long bytesInFlight);
+
+	/**
+	 * Called when duplicate ACKs reported a lost packet and fast recovery
+	 * starts.
+	 *
+	 * @param bytesInFlight
+	 *            the amount of unacknowledged bytes
+	 * @param duplicateAcks
+	 *            the amount of duplicate ACKs, which reported the loss (each
+	 *            of them reports a packet, which left the network)
+	 */
+	void onLoss(long bytesInFlight, int duplicateAcks);
+
+	/**
+	 * Called when fast recovery ends, because all data, which was in flight
+	 * when it started, is acknowledged. The lost packets after a timeout are
+	 * resent like in fast recovery, so it is called after onTimeout as well.
+	 *
+	 * @param bytesInFlight
+	 *            the amount of unacknowledged bytes
+	 */
+	void onRecoveryEnd(long bytesInFlight);
+
+	/**
+	 * Called when the retransmission timer expired.
+	 *
+	 * @param bytesInFlight
+	 *            the amount of unacknowledged bytes
+	 */
+	void onTimeout(long bytesInFlight);
+
+	/**
+	 * Called for each measured round trip time.
+	 *
+	 * @param rtt
+	 *            the round trip time in microseconds
+	 */
+	void onRttSample(long rtt);
+
+	/**
+	 * Called for each ACK, which acknowledges a packet, that was not resent.
+	 * The delivery rate is the amount of data, which was acknowledged while
+	 * the packet was in flight, divided by the time since the packets in
+	 * flight before it were acknowledged.
+	 *
+	 * @param deliveryRate
+	 *            the delivery rate in bytes per second
+	 * @param delivered
+	 *            the amount of bytes acknowledged since the connection opened
+	 * @param priorDelivered
+	 *            the amount of bytes, which was acknowledged when the packet
+	 *            was sent
+	 */
+	void onDeliveryRate(long deliveryRate, long delivered, long priorDelivered);
+
+	/**
+	 * @return the maximum amount of unacknowledged bytes (the congestion
+	 *         window)
+	 */
+	long getCongestionWindow();
+
+	/**
+	 * @return the rate, at which new packets are sent, in bytes per second,
+	 *         or 0 if they are sent as fast as the congestion window allows
+	 */
+	long getPacingRate();
+}
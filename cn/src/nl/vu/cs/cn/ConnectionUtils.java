@@ -93,4 +93,14 @@ public class ConnectionUtils {
 		return (currentSEQ + amountOfBytes) % ConnectionUtils.MAX32BIT_VALUE;
 	
 	}
+
+	/**
+	 * Returns the amount of bytes from the SEQ number fromSEQ up to the SEQ number toSEQ (taking an overflow of the SEQ numbers into account)
+	 * @param fromSEQ
+	 * @param toSEQ
+	 * @return
+	 */
+	public static long getSequenceDistance(long fromSEQ, long toSEQ) {
+		return (toSEQ - fromSEQ + ConnectionUtils.MAX32BIT_VALUE) % ConnectionUtils.MAX32BIT_VALUE;
+	}
 }
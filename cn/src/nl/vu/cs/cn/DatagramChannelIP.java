@@ -0,0 +1,187 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Random;
+
+/**
+ * This class is a virtual IP stack, which does not need the native library.
+ * It uses the same encapsulation scheme: the IP packets are sent in UDP
+ * packets over the localhost interface to port 2000 + the last octet of the
+ * destination address, but it is implemented with DatagramChannels, so the
+ * stack also runs on a plain JVM.
+ * <br/>
+ * Each UDP packet contains a header of 16 bytes (source, destination, protocol
+ * and id) followed by the data. This is not the format of the native library,
+ * therefore all stacks, which talk to each other, must use this class.
+ * <br/>
+ * The System properties PACKET_LOSS and PACKET_CORRUPTION are supported like
+ * in the native layer, but losses and corruptions are not logged.
+ */
+public class DatagramChannelIP extends IP {
+
+	/** The length of the header in front of the data of each UDP packet. */
+	private static final int HEADER_LENGTH = 16;
+
+	/** The maximum length of a UDP payload. */
+	private static final int MAX_UDP_PAYLOAD_LENGTH = 65507;
+
+	/** The local virtual address in "host" order. */
+	private final int source;
+
+	/** The channel used to send packets. */
+	private final DatagramChannel sendingChannel;
+
+	/** The channel, which is bound to the port of the local address, used to receive packets. */
+	private final DatagramChannel receivingChannel;
+
+	/** The selector used to wait for packets with a timeout. */
+	private final Selector selector;
+
+	/** The buffer reused for each sent packet. */
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD_LENGTH);
+
+	/** The buffer reused for each received packet. */
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD_LENGTH);
+
+	/** The UDP addresses of the virtual addresses, which are created on first use. */
+	private final InetSocketAddress[] destinations = new InetSocketAddress[256];
+
+	/** The percentage of packets, which are lost. */
+	private final int packetLoss = Integer.getInteger("PACKET_LOSS", 0);
+
+	/** The percentage of packets, which are corrupted. */
+	private final int packetCorruption = Integer.getInteger("PACKET_CORRUPTION", 0);
+
+	/** Decides which packets are lost or corrupted. */
+	private final Random random = new Random();
+
+	/**
+	 * Construct a virtual IP interface with the given address number.
+	 * The virtual IP address will then be 192.168.0.<address>
+	 *
+	 * @param address a virtual address 1-254.
+	 * @throws IOException if the channels can not be opened.
+	 */
+	public DatagramChannelIP(int address) throws IOException {
+		super(address, false);
+		source = getLocalAddress().getAddress();
+
+		sendingChannel = DatagramChannel.open();
+
+		receivingChannel = DatagramChannel.open();
+		receivingChannel.socket().setReuseAddress(true);
+		receivingChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), BASE_PORT + address));
+		receivingChannel.configureBlocking(false);
+
+		selector = Selector.open();
+		receivingChannel.register(selector, SelectionKey.OP_READ);
+	}
+
+	@Override
+	public int ip_send(Packet p) throws IOException {
+		if (p.length + HEADER_LENGTH > MAX_UDP_PAYLOAD_LENGTH) {
+			throw new IOException("Packet too large: " + p.length);
+		}
+		if (packetLoss > 0 && random.nextInt(100) < packetLoss) {
+			return p.length;
+		}
+
+		synchronized (sendBuffer) {
+			sendBuffer.clear();
+			sendBuffer.putInt(source);
+			sendBuffer.putInt(p.destination);
+			sendBuffer.putInt(p.protocol);
+			sendBuffer.putInt(p.id);
+			sendBuffer.put(p.data, 0, p.length);
+			if (p.length > 0 && packetCorruption > 0 && random.nextInt(100) < packetCorruption) {
+				int i = HEADER_LENGTH + random.nextInt(p.length);
+				sendBuffer.put(i, (byte) ~sendBuffer.get(i));
+			}
+			sendBuffer.flip();
+			sendingChannel.send(sendBuffer, getDestination(p.destination));
+		}
+		return p.length;
+	}
+
+	@Override
+	public void ip_receive(Packet p) throws IOException {
+		receive(p, 0);
+	}
+
+	@Override
+	public void ip_receive_timeout(Packet p, int timeout)
+	throws IOException, InterruptedException {
+		if (!receive(p, timeout * 1000L)) {
+			throw new InterruptedException("Timeout");
+		}
+	}
+
+	/**
+	 * Receives a packet into p. The data array of p is only
+	 * reallocated if it is too small.
+	 *
+	 * @param p the received packet
+	 * @param timeout the timeout in milliseconds, zero or less waits forever
+	 * @return false if no packet was received within the timeout
+	 * @throws IOException if receiving fails
+	 */
+	private boolean receive(Packet p, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (receiveBuffer) {
+			while (true) {
+				receiveBuffer.clear();
+				if (receivingChannel.receive(receiveBuffer) == null) {
+					// nothing there yet, wait for the next packet
+					long remaining = 0;
+					if (timeout > 0) {
+						remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							return false;
+						}
+					}
+					selector.select(remaining);
+					selector.selectedKeys().clear();
+					continue;
+				}
+
+				receiveBuffer.flip();
+				if (receiveBuffer.remaining() < HEADER_LENGTH) {
+					// not one of our packets
+					continue;
+				}
+				p.source = receiveBuffer.getInt();
+				p.destination = receiveBuffer.getInt();
+				p.protocol = receiveBuffer.getInt();
+				p.id = receiveBuffer.getInt();
+				p.length = receiveBuffer.remaining();
+				if (p.data == null || p.data.length < p.length) {
+					p.data = new byte[p.length];
+				}
+				receiveBuffer.get(p.data, 0, p.length);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param address a virtual address in "host" order
+	 * @return the UDP address of the given virtual address
+	 * @throws IOException if the address is not resolved
+	 */
+	private InetSocketAddress getDestination(int address) throws IOException {
+		int octet = (address >>> 24) & 0xff;
+		InetSocketAddress destination = destinations[octet];
+		if (destination == null) {
+			destination = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), BASE_PORT + octet);
+			destinations[octet] = destination;
+		}
+		return destination;
+	}
+
+}
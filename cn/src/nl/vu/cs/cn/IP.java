@@ -20,6 +20,9 @@ import java.io.IOException;
  * <br/>
  * Finally, note that this IP layer does NOT handle any fragmentation, so packets
  * must be smaller than 8100 bytes to be safely transmitted without truncation.
+ * <br/>
+ * The transport is implemented by the native library. Subclasses may replace it
+ * by overriding ip_send, ip_receive and ip_receive_timeout (see DatagramChannelIP).
  *
  * @author nick &lt;palmer@cs.vu.nl&gt;
  */
@@ -31,6 +34,15 @@ public class IP {
     /** The protocol number for TCP. */
     public static final int TCP_PROTOCOL = 6;
 
+    /**
+     * The System property, which selects the transport of the IP stacks created
+     * with {@link #create(int)}. The value "nio" selects DatagramChannelIP.
+     */
+    public static final String TRANSPORT_PROPERTY = "IP_TRANSPORT";
+
+    /** The first UDP port number. The virtual address x uses port BASE_PORT + x. */
+    public static final int BASE_PORT = 2000;
+
     /** The local virtual address. */
     private int address;
     /** The local virtual address as an IpAddress. */
@@ -42,6 +54,15 @@ public class IP {
     /** The native receiving socket. */
     private int receiving_socket;
 
+    /** The amount of packets the receiver thread buffers for ip_receive_timeout_millis. */
+    private static final int RECEIVE_QUEUE_SIZE = 64;
+    /** Packets received by the receiver thread, which were not picked up yet. */
+    private final PacketQueue receivedPackets = new PacketQueue(RECEIVE_QUEUE_SIZE);
+    /** The thread, which receives packets for ip_receive_timeout_millis (started on first use). */
+    private Thread receiverThread;
+    /** The last exception of the receiver thread, which is passed on to the next caller. */
+    private volatile IOException receiveException;
+
     public static class IpAddress {
     	/**
     	 * The address this instance represents.
@@ -126,9 +147,17 @@ public class IP {
     	
     }
 
-    // Load the native library.
+    /** True if the native library is available. */
+    private static boolean nativeLibraryLoaded;
+
+    // Load the native library (if it is available on this platform).
     static {
-        System.loadLibrary("cnpracticum");
+        nativeLibraryLoaded = true;
+        try {
+            System.loadLibrary("cnpracticum");
+        } catch (UnsatisfiedLinkError e) {
+            nativeLibraryLoaded = false;
+        }
     }
 
     /**
@@ -139,12 +168,47 @@ public class IP {
      * @throws IOException if initialization fails.
      */
     public IP(int address) throws IOException {
+        this(address, true);
+    }
+
+    /**
+     * Construct a virtual IP interface with the given address number.
+     * Subclasses, which implement their own transport, pass false
+     * for initNative, so the native library is not used.
+     *
+     * @param address a virtual address 1-254.
+     * @param initNative true if the native layer should be initialized.
+     * @throws IOException if initialization fails.
+     */
+    protected IP(int address, boolean initNative) throws IOException {
         if (address < 1 || address > 254) {
             throw new IOException("Invalid address. 1-254 only.");
         }
 
         ipAddress = IpAddress.getAddress("192.168.0." + address);
-        ip_init(address);
+        if (initNative) {
+            if (!nativeLibraryLoaded) {
+                throw new IOException("The native library is not available.");
+            }
+            ip_init(address);
+        }
+    }
+
+    /**
+     * Creates a virtual IP interface with the given address number.
+     * The native transport is used if the native library is available,
+     * otherwise (or if the System property IP_TRANSPORT is "nio")
+     * a DatagramChannelIP is created.
+     *
+     * @param address a virtual address 1-254.
+     * @return the virtual IP interface.
+     * @throws IOException if initialization fails.
+     */
+    public static IP create(int address) throws IOException {
+        if (!nativeLibraryLoaded || "nio".equals(System.getProperty(TRANSPORT_PROPERTY))) {
+            return new DatagramChannelIP(address);
+        }
+        return new IP(address);
     }
 
     /**
@@ -269,4 +333,84 @@ public class IP {
     public native void ip_receive_timeout(Packet p, int timeout)
 	throws IOException, InterruptedException;
 
+    /**
+     * Receives a packet, like ip_receive_timeout, but the timeout
+     * is given in milliseconds. The packets are received by a
+     * background thread, which is started on the first call, therefore
+     * ip_receive and ip_receive_timeout must not be used any more on
+     * this instance afterwards.
+     * <br>
+     * The received data is handed over by exchanging the data arrays
+     * of the packets, so no data is copied.
+     *
+     * @param p the received packet
+     * @param timeout the timeout in milliseconds
+     * @throws IOException if receiving fails
+     * @throws InterruptedException if a timeout occurred
+     */
+    public void ip_receive_timeout_millis(Packet p, long timeout)
+    throws IOException, InterruptedException {
+        if (!ip_poll(p, timeout)) {
+            throw new InterruptedException("Timeout");
+        }
+    }
+
+    /**
+     * Receives a packet, like ip_receive_timeout_millis, but a timeout
+     * is reported by the return value instead of an exception, so it
+     * can be used to poll for packets cheaply. The given packet is
+     * only changed if a packet was received.
+     *
+     * @param p the received packet
+     * @param timeout the timeout in milliseconds, zero or less waits forever
+     * @return true if a packet was received, false if a timeout occurred
+     * @throws IOException if receiving fails
+     */
+    public boolean ip_poll(Packet p, long timeout) throws IOException {
+        startReceiverThread();
+
+        if (!receivedPackets.poll(p, timeout)) {
+            IOException e = receiveException;
+            if (e != null) {
+                receiveException = null;
+                throw e;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts the thread, which receives the packets for
+     * ip_receive_timeout_millis, if it is not running yet.
+     */
+    private synchronized void startReceiverThread() {
+        if (receiverThread != null) {
+            return;
+        }
+        receiverThread = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Packet p = receivedPackets.takeFree();
+                        try {
+                            ip_receive(p);
+                        } catch (IOException e) {
+                            receiveException = e;
+                            receivedPackets.release(p);
+                            // don't spin if the native layer keeps failing
+                            Thread.sleep(10);
+                            continue;
+                        }
+                        receivedPackets.put(p);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "IP receiver " + ipAddress);
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
 }
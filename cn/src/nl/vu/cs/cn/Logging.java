@@ -1,79 +1,319 @@
 package nl.vu.cs.cn;
 
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
 import nl.vu.cs.cn.TCP.TcpControlBlock;
 
 
 /**
  * This singleton class is used for logging several errors and warnings to LogCat
+ * (or another sink, see setSink).
+ * <br/>
+ * Messages below the level (see setLevel) are dropped right away. Callers on the
+ * packet path check isLoggable, before they build their message. The other
+ * messages are queued in a lock-free ring buffer and written to the sink by a
+ * background thread, which also formats the state of the connection, so the
+ * sending and receiving threads never wait for LogCat. If the queue is full,
+ * messages are dropped (see getDroppedMessages).
  * @author Herbert Bodner, Alexandru Assandei
  *
  */
 public class Logging {
-	
+
+	/** The levels of the messages, from the most to the least important. */
+	public enum Level {
+		ERROR, WARNING, INFO
+	}
+
+	/** The destination of the messages, which the background thread writes. */
+	public interface Sink {
+		void write(Level level, String tag, String msg);
+	}
+
+	/** The default sink: writes the messages to LogCat. */
+	public static final Sink LOGCAT = new Sink() {
+		public void write(Level level, String tag, String msg) {
+			switch (level) {
+			case ERROR:
+				android.util.Log.e(tag, msg);
+				break;
+			case WARNING:
+				android.util.Log.w(tag, msg);
+				break;
+			default:
+				android.util.Log.i(tag, msg);
+				break;
+			}
+		}
+	};
+
+	/** A sink, which writes the messages to a stream (e.g. System.err, when running off Android). */
+	public static class StreamSink implements Sink {
+		private final PrintStream out;
+
+		public StreamSink(PrintStream out) {
+			this.out = out;
+		}
+
+		public void write(Level level, String tag, String msg) {
+			out.println(level + "/" + tag + ": " + msg);
+		}
+	}
+
+	/** The amount of messages, which the queue holds (a power of 2). */
+	private static final int QUEUE_SIZE = 1024;
+
+	/** The maximum time (in nanoseconds), which the writer sleeps without being woken up. */
+	private static final long WRITER_PARK_NANOS = 100000000;
+
 	// Singleton pattern
-	private static Logging instance = null;
+	private static final Logging instance = new Logging();
 	public static Logging getInstance() {
-		if (instance==null)
-			instance = new Logging();
 		return instance;
 	}
 	private Logging() {
-		
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeMessages();
+			}
+		}, "Logging");
+		writer.setDaemon(true);
+		writer.start();
 	}
-	
-	
-	/**if detailedLogging is on, then the current connection state with some additional information is written to LogCat*/
-	private boolean detailedLogging = true;
-	
+
+
+	/**if detailedLogging is on, then the current connection state with some additional information is written to LogCat (off by default, see setDetailedLogging)*/
+	private volatile boolean detailedLogging = false;
+
+	/** the least important level, which is logged (WARNING by default, the tests switch INFO on, see setLevel) */
+	private volatile Level level = Level.WARNING;
+
+	/** the destination of the messages */
+	private volatile Sink sink = LOGCAT;
+
+	/** the queued messages, slot i holds the message number i modulo QUEUE_SIZE */
+	private final AtomicReferenceArray<Message> queue = new AtomicReferenceArray<Message>(QUEUE_SIZE);
+
+	/** the number of the next message, which is queued (claimed by the callers with a CAS) */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** the number of the next message, which the writer takes (only written by the writer) */
+	private volatile long head = 0;
+
+	/** the amount of messages, which were dropped, because the queue was full */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** the background thread, which writes the messages to the sink */
+	private final Thread writer;
+
+	/** true, while the writer sleeps, because the queue is empty */
+	private volatile boolean writerWaiting = false;
+
 	/**
-	 * Switch on/off detailed logging (if it is on, then the current connection state with some additional information is written to LogCat) 
+	 * Switch on/off detailed logging (if it is on, then the current connection state with some additional information is written to LogCat)
 	 * @param detailedLoggingOn
 	 */
 	public void setDetailedLogging(boolean detailledLoggingOn) {
 		detailedLogging = detailledLoggingOn;
 	}
-	
+
+	/**
+	 * Sets the least important level, which is logged (e.g. ERROR logs only
+	 * errors, INFO everything).
+	 * @param level
+	 */
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Callers, which build their message of several values, check this first,
+	 * so a message, which is not logged, costs nothing.
+	 * @param level
+	 * @return true if messages of the given level are logged
+	 */
+	public boolean isLoggable(Level level) {
+		return level.compareTo(this.level) <= 0;
+	}
+
+	/**
+	 * Replaces the destination of the messages (e.g. a StreamSink, when the
+	 * stack runs off Android).
+	 * @param sink
+	 */
+	public void setSink(Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * @return the amount of messages, which were dropped, because the queue was full
+	 */
+	public long getDroppedMessages() {
+		return dropped.get();
+	}
+
+	/**
+	 * Waits, until the queued messages are written (at most the given time).
+	 * @param timeoutMillis
+	 * @return true if all messages, which were queued before, are written
+	 */
+	public boolean flush(long timeoutMillis) {
+		long end = tail.get();
+		long deadline = System.nanoTime() + timeoutMillis * 1000000;
+		while (head - end < 0) {
+			if (System.nanoTime() - deadline > 0)
+				return false;
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(1000000);
+		}
+		return true;
+	}
+
 	/**
 	 * Log a TCPPacket Error with a given msg to LogCat.
 	 * @param control
 	 * @param msg
 	 */
 	public void LogTcpPacketError(TcpControlBlock control, String msg) {
-		Log(control, "TCPPacketError", msg);
+		Log(control, Level.WARNING, "TCPPacketError", msg);
+	}
+
+	/**
+	 * Log a TCPPacket Information (e.g. a dropped or rejected packet, which
+	 * the protocol recovers from) with a given msg to LogCat.
+	 * @param control
+	 * @param msg
+	 */
+	public void LogTcpPacketInformation(TcpControlBlock control, String msg) {
+		Log(control, Level.INFO, "TCPPacketInformation", msg);
 	}
-	
+
 	/**
 	 * Log a TCP Connection Error with a  given msg to LogCat
 	 * @param msg
 	 */
 	public void LogConnectionError(TcpControlBlock control, String msg) {
-		Log(control, "TCPConnectionError", msg);
+		Log(control, Level.ERROR, "TCPConnectionError", msg);
 	}
-	
+
 	/**
 	 * Log a TCPPacket Information with a given msg to LogCat
 	 * @param msg
 	 */
 	public void LogConnectionInformation(TcpControlBlock control, String msg) {
-		Log(control, "TCPConnectionInformation", msg);
+		Log(control, Level.INFO, "TCPConnectionInformation", msg);
 	}
-	
+
 
 	/**
-	 * Writes the message with the given type and additional TcpControlBlock information to LogCat 
+	 * Queues the message with the given type and a copy of the current
+	 * TcpControlBlock information, which the writer formats.
 	 * @param control
+	 * @param level
 	 * @param type
 	 * @param msg
 	 */
-	private void Log(TcpControlBlock control, String type, String msg) {
+	private void Log(TcpControlBlock control, Level level, String type, String msg) {
+		if (!isLoggable(level))
+			return;
+		Message message = new Message(level, type, msg);
 		if (control != null && detailedLogging) {
-			msg += "; Side='" + control.tcb_communication_side + "'"
-					+ ", ConnectionState=" + control.tcb_state 
-					+ ", tcb_local_sequence_num=" + control.tcb_local_sequence_num 
-					+ ", tcb_local_expected_ack=" + control.tcb_local_expected_ack 
-					+ ", tcb_remote_next_expected_SEQ_num=" + control.tcb_remote_next_expected_SEQ_num 
-					+ ", tcb_remote_last_expected_SEQ_num=" + control.tcb_remote_last_expected_SEQ_num; 
+			message.detailed = true;
+			message.side = control.tcb_communication_side;
+			message.state = control.tcb_state;
+			message.localSequenceNum = control.tcb_local_sequence_num;
+			message.localExpectedAck = control.tcb_local_expected_ack;
+			message.remoteNextExpectedSEQNum = control.tcb_remote_next_expected_SEQ_num;
+			message.remoteLastExpectedSEQNum = control.tcb_remote_last_expected_SEQ_num;
+		}
+		offer(message);
+	}
+
+	/**
+	 * Appends a message to the queue without locking: the caller claims the
+	 * next number with a CAS and then publishes the message in its slot.
+	 * @param message
+	 */
+	private void offer(Message message) {
+		long t;
+		do {
+			t = tail.get();
+			if (t - head >= QUEUE_SIZE) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+		queue.lazySet((int) (t & (QUEUE_SIZE - 1)), message);
+		if (writerWaiting)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * The loop of the writer: takes the messages in their order from the
+	 * queue and writes them to the sink. It sleeps while the queue is empty.
+	 */
+	private void writeMessages() {
+		while (true) {
+			int slot = (int) (head & (QUEUE_SIZE - 1));
+			Message message = queue.get(slot);
+			if (message == null) {
+				writerWaiting = true;
+				// check again: a caller may have queued a message, before it saw the flag
+				if (queue.get(slot) == null)
+					LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+				writerWaiting = false;
+				continue;
+			}
+			// free the slot, before the callers see the new head
+			queue.set(slot, null);
+			head = head + 1;
+
+			try {
+				sink.write(message.level, message.type, message.format());
+			} catch (RuntimeException e) {
+				// a broken sink must not stop the logging of later messages
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * A queued message with the state of the connection, when it was logged.
+	 */
+	private static final class Message {
+		final Level level;
+		final String type;
+		final String msg;
+		boolean detailed;
+		String side;
+		ConnectionState state;
+		long localSequenceNum;
+		long localExpectedAck;
+		long remoteNextExpectedSEQNum;
+		long remoteLastExpectedSEQNum;
+
+		Message(Level level, String type, String msg) {
+			this.level = level;
+			this.type = type;
+			this.msg = msg;
+		}
+
+		String format() {
+			if (!detailed)
+				return msg;
+			return msg + "; Side='" + side + "'"
+					+ ", ConnectionState=" + state
+					+ ", tcb_local_sequence_num=" + localSequenceNum
+					+ ", tcb_local_expected_ack=" + localExpectedAck
+					+ ", tcb_remote_next_expected_SEQ_num=" + remoteNextExpectedSEQNum
+					+ ", tcb_remote_last_expected_SEQ_num=" + remoteLastExpectedSEQNum;
 		}
-		android.util.Log.w(type, msg);
 	}
 }
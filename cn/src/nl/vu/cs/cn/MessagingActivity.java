@@ -106,7 +106,7 @@ public class MessagingActivity extends Activity {
 					
 				//messageHistory1.append("\nListening for connections...");
 				// listen at serverSocketListener and accept new incoming connections
-				serverSocket.accept();
+				serverSocket = serverSocket.accept();
 				
 				mHandler.post(new Runnable() {
     	            @Override
@@ -0,0 +1,125 @@
+package nl.vu.cs.cn;
+
+/**
+ * This class is the standard loss based congestion control of TCP (RFC 5681
+ * with the NewReno modification of fast recovery, RFC 6582).
+ * <br/>
+ * The congestion window starts with two packets and grows by up to two
+ * packets per ACK (slow start, with appropriate byte counting of RFC 3465),
+ * until it reaches the slow start threshold. Above it, the window grows by one
+ * packet per round trip (congestion avoidance). A loss, which is detected by
+ * duplicate ACKs, halves the window, a retransmission timeout shrinks it to
+ * one packet.
+ * <br/>
+ * The packets are not paced: they are sent as soon as the window allows.
+ */
+public class NewRenoCongestionControl implements CongestionControl {
+
+	/** The maximum segment size. */
+	private int mss;
+
+	/** The congestion window. */
+	private long cwnd;
+
+	/** The slow start threshold. */
+	private long ssthresh;
+
+	/** The acknowledged bytes, which did not grow the window yet (congestion avoidance). */
+	private long bytesAcked;
+
+	/** True during fast recovery. */
+	private boolean recovery;
+
+	public NewRenoCongestionControl() {
+		init(TCP.TcpPacket.MAX_PAYLOAD_LENGTH);
+	}
+
+	@Override
+	public CongestionControl newInstance() {
+		return new NewRenoCongestionControl();
+	}
+
+	@Override
+	public void init(int mss) {
+		this.mss = mss;
+		// initial window of RFC 5681 for large segments
+		cwnd = 2L * mss;
+		ssthresh = Long.MAX_VALUE;
+		bytesAcked = 0;
+		recovery = false;
+	}
+
+	@Override
+	public void onAck(long ackedBytes, long bytesInFlight) {
+		if (recovery) {
+			// partial ACK: deflate the window by the acknowledged data, but
+			// keep one packet for the retransmission of the next lost packet
+			cwnd = Math.max(cwnd - ackedBytes + mss, mss);
+		}
+		else if (cwnd < ssthresh) {
+			// slow start
+			cwnd += Math.min(ackedBytes, 2L * mss);
+		}
+		else {
+			// congestion avoidance: one packet per window
+			bytesAcked += ackedBytes;
+			if (bytesAcked >= cwnd) {
+				bytesAcked -= cwnd;
+				cwnd += mss;
+			}
+		}
+	}
+
+	@Override
+	public void onDuplicateAck(long bytesInFlight) {
+		if (recovery) {
+			// each duplicate ACK reports a packet, which left the network
+			cwnd += mss;
+		}
+	}
+
+	@Override
+	public void onLoss(long bytesInFlight, int duplicateAcks) {
+		ssthresh = Math.max(bytesInFlight / 2, 2L * mss);
+		// the packets of the duplicate ACKs, which reported the loss, left the network
+		cwnd = ssthresh + (long) duplicateAcks * mss;
+		bytesAcked = 0;
+		recovery = true;
+	}
+
+	@Override
+	public void onRecoveryEnd(long bytesInFlight) {
+		if (recovery) {
+			cwnd = Math.min(ssthresh, Math.max(bytesInFlight, mss) + mss);
+			recovery = false;
+		}
+	}
+
+	@Override
+	public void onTimeout(long bytesInFlight) {
+		ssthresh = Math.max(bytesInFlight / 2, 2L * mss);
+		cwnd = mss;
+		bytesAcked = 0;
+		recovery = false;
+	}
+
+	@Override
+	public void onRttSample(long rtt) {
+		// the window depends on losses only
+	}
+
+	@Override
+	public void onDeliveryRate(long deliveryRate, long delivered, long priorDelivered) {
+		// a loss based algorithm
+	}
+
+	@Override
+	public long getCongestionWindow() {
+		return cwnd;
+	}
+
+	@Override
+	public long getPacingRate() {
+		return 0;
+	}
+}
@@ -0,0 +1,159 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is a bounded queue of received IP packets, which is used to hand
+ * packets from a receiving thread to the thread, which processes them.
+ * <br/>
+ * The queue owns a fixed amount of packets, which are reused. Packets are
+ * handed over by exchanging the data arrays of the packets, so no data is
+ * copied and no memory is allocated while packets are passed on.
+ */
+public class PacketQueue {
+
+	/** Packets, which were received, but not picked up yet. */
+	private final ArrayBlockingQueue<IP.Packet> receivedPackets;
+
+	/** Empty packets, which can be filled by the receiving thread. */
+	private final ArrayBlockingQueue<IP.Packet> freePackets;
+
+	/**
+	 * @param capacity
+	 *            the maximum amount of packets in the queue
+	 */
+	public PacketQueue(int capacity) {
+		receivedPackets = new ArrayBlockingQueue<IP.Packet>(capacity);
+		freePackets = new ArrayBlockingQueue<IP.Packet>(capacity);
+		for (int i = 0; i < capacity; i++) {
+			freePackets.offer(new IP.Packet(0, 0, 0, new byte[] {}, 0));
+		}
+	}
+
+	/**
+	 * Waits for an empty packet, which can be filled and then handed to
+	 * put (or back to release).
+	 *
+	 * @return an empty packet of this queue
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	public IP.Packet takeFree() throws InterruptedException {
+		return freePackets.take();
+	}
+
+	/**
+	 * Appends a packet, which was obtained by takeFree, to the queue.
+	 *
+	 * @param p
+	 */
+	public void put(IP.Packet p) {
+		receivedPackets.offer(p);
+	}
+
+	/**
+	 * Hands a packet, which was obtained by takeFree, back unused.
+	 *
+	 * @param p
+	 */
+	public void release(IP.Packet p) {
+		freePackets.offer(p);
+	}
+
+	/**
+	 * Appends the content of the given packet to the queue, if it is not
+	 * full. The given packet gets the data array of an empty packet in
+	 * exchange, therefore it can be reused by the caller.
+	 *
+	 * @param p
+	 * @return false if the queue is full (and the packet was not appended)
+	 */
+	public boolean offer(IP.Packet p) {
+		IP.Packet free = freePackets.poll();
+		if (free == null) {
+			return false;
+		}
+		swap(p, free);
+		receivedPackets.offer(free);
+		return true;
+	}
+
+	/**
+	 * Moves the oldest packet of the queue into the given packet. The data
+	 * array of the given packet is reused for the following packets.
+	 *
+	 * @param p
+	 *            the received packet
+	 * @param timeout
+	 *            the timeout in milliseconds, zero or less waits forever
+	 * @return false if no packet arrived within the timeout (or the thread
+	 *         was interrupted)
+	 */
+	public boolean poll(IP.Packet p, long timeout) {
+		IP.Packet received;
+		try {
+			if (timeout > 0) {
+				received = receivedPackets.poll(timeout, TimeUnit.MILLISECONDS);
+			} else {
+				received = receivedPackets.take();
+			}
+		} catch (InterruptedException e) {
+			// the calling thread was interrupted, handle it like a timeout
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if (received == null) {
+			return false;
+		}
+		swap(received, p);
+		freePackets.offer(received);
+		return true;
+	}
+
+	/**
+	 * Returns the oldest packet of the queue without removing it. The packet
+	 * stays owned by the queue, it must not be changed or kept.
+	 *
+	 * @return the oldest packet, or null if the queue is empty
+	 */
+	public IP.Packet peek() {
+		return receivedPackets.peek();
+	}
+
+	/**
+	 * Moves the oldest packet of the queue into the given packet, like poll,
+	 * but does not wait, if the queue is empty.
+	 *
+	 * @param p
+	 *            the received packet
+	 * @return false if no packet was queued
+	 */
+	public boolean pollNow(IP.Packet p) {
+		IP.Packet received = receivedPackets.poll();
+		if (received == null) {
+			return false;
+		}
+		swap(received, p);
+		freePackets.offer(received);
+		return true;
+	}
+
+	/**
+	 * Moves the content of the packet from to the packet to. The packet
+	 * from gets the old data array of to.
+	 *
+	 * @param from
+	 * @param to
+	 */
+	private static void swap(IP.Packet from, IP.Packet to) {
+		to.source = from.source;
+		to.destination = from.destination;
+		to.protocol = from.protocol;
+		to.id = from.id;
+		to.length = from.length;
+		byte[] data = to.data;
+		to.data = from.data;
+		from.data = data;
+	}
+}
@@ -0,0 +1,167 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is a fixed size circular byte buffer. Data is appended at the
+ * end and taken from the beginning with at most two array copies, so no data
+ * has to be moved and no memory is allocated after construction.
+ * It is used for the received, but not yet delivered data of a connection.
+ * <br/>
+ * The class is not thread safe.
+ */
+public class RingBuffer {
+
+	/** The buffered bytes. */
+	private final byte[] buffer;
+
+	/** A view of buffer for the word-wise copies of stage. */
+	private final ByteBuffer view;
+
+	/** The index of the first buffered byte. */
+	private int head = 0;
+
+	/** The amount of buffered bytes. */
+	private int size = 0;
+
+	/** The amount of bytes, which were copied behind the buffered bytes by stage. */
+	private int stagedLength = 0;
+
+	/** The index, at which the staged bytes start. */
+	private int stagedIndex = -1;
+
+	/**
+	 * @param capacity
+	 *            the maximum amount of bytes, which can be buffered
+	 */
+	public RingBuffer(int capacity) {
+		buffer = new byte[capacity];
+		view = ByteBuffer.wrap(buffer);
+	}
+
+	/**
+	 * @return the maximum amount of bytes, which can be buffered
+	 */
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return the amount of buffered bytes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the amount of bytes, which can still be appended
+	 */
+	public int free() {
+		return buffer.length - size;
+	}
+
+	/**
+	 * Appends len bytes of src (starting at offset) to the buffer.
+	 *
+	 * @param src
+	 * @param offset
+	 * @param len
+	 * @throws IllegalArgumentException
+	 *             if there is not enough free space for len bytes
+	 */
+	public void write(byte[] src, int offset, int len) {
+		if (len > free()) {
+			throw new IllegalArgumentException("Not enough free space in the buffer (free='" + free() + "', needed='" + len + "')");
+		}
+		int tail = (head + size) % buffer.length;
+		// copy up to the end of the array, the rest wraps around to the beginning
+		int first = Math.min(len, buffer.length - tail);
+		System.arraycopy(src, offset, buffer, tail, first);
+		System.arraycopy(src, offset + first, buffer, 0, len - first);
+		size += len;
+		stagedLength = 0;
+	}
+
+	/**
+	 * Copies len bytes of src (starting at the absolute index) behind the
+	 * buffered bytes and adds them to a partial checksum in the same pass
+	 * (see Checksum.copy). The bytes are only appended by commit, e.g. after
+	 * the checksum was verified. Until then, they are overwritten by the next
+	 * write or stage.
+	 *
+	 * @param src
+	 * @param index
+	 * @param len
+	 * @param sum
+	 *            the partial checksum of the preceding data (the bytes must
+	 *            start at an even offset of the checksummed data)
+	 * @return the new partial checksum
+	 * @throws IllegalArgumentException
+	 *             if there is not enough free space for len bytes
+	 */
+	public long stage(ByteBuffer src, int index, int len, long sum) {
+		if (len > free()) {
+			throw new IllegalArgumentException("Not enough free space in the buffer (free='" + free() + "', needed='" + len + "')");
+		}
+		int tail = (head + size) % buffer.length;
+		// copy up to the end of the array, the rest wraps around to the beginning
+		int first = Math.min(len, buffer.length - tail);
+		sum = Checksum.copy(src, index, view, tail, first, sum);
+		if (len > first) {
+			long rest = Checksum.copy(src, index + first, view, 0, len - first, 0);
+			sum += (first & 1) == 0 ? rest : Checksum.swap(rest);
+		}
+		stagedIndex = tail;
+		stagedLength = len;
+		return sum;
+	}
+
+	/**
+	 * Appends len bytes, which were copied by the last stage.
+	 *
+	 * @param len
+	 * @return false if the bytes are not staged (any more), then nothing is
+	 *         appended
+	 */
+	public boolean commit(int len) {
+		if (len > stagedLength || stagedIndex != (head + size) % buffer.length) {
+			return false;
+		}
+		size += len;
+		stagedLength = 0;
+		stagedIndex = -1;
+		return true;
+	}
+
+	/**
+	 * Moves up to maxlen buffered bytes to dst (starting at offset).
+	 *
+	 * @param dst
+	 * @param offset
+	 * @param maxlen
+	 * @return the amount of bytes moved
+	 */
+	public int read(byte[] dst, int offset, int maxlen) {
+		int len = Math.min(maxlen, size);
+		// copy up to the end of the array, the rest wraps around to the beginning
+		int first = Math.min(len, buffer.length - head);
+		System.arraycopy(buffer, head, dst, offset, first);
+		System.arraycopy(buffer, 0, dst, offset + first, len - first);
+		head = (head + len) % buffer.length;
+		size -= len;
+		if (size == 0) {
+			// start at the beginning again, so the next reads need only one copy
+			head = 0;
+		}
+		return len;
+	}
+
+	/**
+	 * Removes all buffered bytes.
+	 */
+	public void clear() {
+		head = 0;
+		size = 0;
+		stagedLength = 0;
+	}
+}
@@ -3,7 +3,15 @@ package nl.vu.cs.cn;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import nl.vu.cs.cn.IP.IpAddress;
 import nl.vu.cs.nc.test.PacketLossControl;
@@ -17,6 +25,75 @@ public class TCP {
 	/** The underlying IP stack for this TCP stack. */
 	private IP ip;
 
+	/** The time (in ms) a socket waits for a packet of the other side, before it gives up (e.g. in read). */
+	static final int RECEIVE_TIMEOUT = 1000;
+
+	/** The retransmission timeout (in ms), which is used until the first round trip time was measured. */
+	static final int INITIAL_RTO = 1000;
+
+	/** The amount of retransmissions of a packet without any ACK, before we give up. */
+	static final int MAX_RETRANSMISSIONS = 10;
+
+	/** The amount of duplicate ACKs, which report a lost packet (see fast retransmit). */
+	static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+	/** The lower bound of the retransmission timeout (in microseconds). */
+	private long minRTO = 20 * 1000;
+
+	/** The upper bound of the retransmission timeout (in microseconds). */
+	private long maxRTO = 60 * 1000 * 1000;
+
+	/** The amount of received packets, which are queued for a socket until it processes them. */
+	static final int SOCKET_QUEUE_SIZE = 16;
+
+	/**
+	 * The time (in ms) an ACK of received data is delayed at most, in case it
+	 * can be sent together with data. It must be clearly below the minimum
+	 * retransmission timeout, otherwise the other side resends the data.
+	 */
+	static final int DELAYED_ACK_TIMEOUT = 10;
+
+	/** The default amount of connections, which a server socket keeps until they are accepted. */
+	public static final int DEFAULT_BACKLOG = 16;
+
+	/**
+	 * The amount of buffers of acknowledged data packets, which a connection
+	 * keeps for reuse (see obtainPacketBuffer). Further buffers are left to
+	 * the garbage collector, so a burst does not pin a window of memory.
+	 */
+	static final int MAX_FREE_PACKET_BUFFERS = 16;
+
+	/**
+	 * The connected sockets by their connection (see getConnectionKey), to
+	 * which the dispatcher routes the received packets.
+	 */
+	private final HashMap<Long, Socket> connections = new HashMap<Long, Socket>();
+
+	/**
+	 * The server sockets by their local port, which get the received packets
+	 * of no known connection.
+	 */
+	private final HashMap<Integer, Socket> listeners = new HashMap<Integer, Socket>();
+
+	/** The thread, which receives all packets of the IP stack and routes them to the sockets. */
+	private Thread dispatcher;
+
+	/** The generator of the local ports of the client sockets (see registerClientConnection). */
+	private final Random random = new Random();
+
+	/** The sockets, which wait for the timer, in the order of their deadlines (see scheduleTimer). */
+	private final PriorityQueue<TimerEntry> timer_queue = new PriorityQueue<TimerEntry>();
+
+	/**
+	 * The thread, which sends the delayed ACKs, which were not sent together
+	 * with data in time, and the data, which write left behind (see
+	 * Socket.on_timer).
+	 */
+	private Thread timer;
+
+	/** The metrics of the closed connections of this stack (see retireMetrics). */
+	private final TcpMetrics closed_metrics = new TcpMetrics();
+
 	/**
 	 * This class represents a TCP socket.
 	 */
@@ -31,6 +108,49 @@ public class TCP {
 		/** Contains the last received IP packet.*/
 		IP.Packet recv_IP_packet;
 
+		/** The received IP packets, which the dispatcher of the TCP stack routed to this socket. */
+		final PacketQueue received_IP_packets = new PacketQueue(SOCKET_QUEUE_SIZE);
+
+		/**
+		 * The maximum amount of connections of a server socket, which are
+		 * being established or were established, but not accepted yet.
+		 */
+		int backlog;
+
+		/** The new connections of a server socket, whose three-way handshake was not done yet. */
+		ArrayBlockingQueue<Socket> syn_queue;
+
+		/** The established connections of a server socket, which were not accepted yet. */
+		ArrayBlockingQueue<Socket> accept_queue;
+
+		/** The thread of a server socket, which does the three-way handshake of the new connections. */
+		Thread handshake_thread;
+
+		/**
+		 * The thread, which currently takes the received packets of an established connection
+		 * from received_IP_packets and processes them (see receive_segment), or null.
+		 */
+		private Thread receiving_thread;
+
+		/** The amount of packets processed by receive_segment, which tells waiting threads that something changed. */
+		private long processed_packets = 0;
+
+		/** True, while the receiving thread waits for a packet in poll_packet without holding the lock of the control block. */
+		private volatile boolean releasing_lock = false;
+
+		/** The thread, which closes the connection (see close), or null. */
+		private Thread closing_thread;
+
+		/**
+		 * True, if write returned before its data was acknowledged: the ACKs
+		 * are processed by the timer of the stack (see on_timer) or by a
+		 * reading thread, until all data was acknowledged.
+		 */
+		private volatile boolean send_pending = false;
+
+		/** The earliest time (in ms), for which the timer of the stack is scheduled for this socket, or 0 (see scheduleTimer). */
+		long timer_deadline = 0;
+
 		
 		/**
 		 * Construct a client socket.
@@ -46,11 +166,42 @@ public class TCP {
 		 * 
 		 * @param port
 		 *            the local port to use
+		 * @param backlog
+		 *            the maximum amount of connections, which are kept until
+		 *            they are accepted
 		 * @throws IOException
 		 */
-		private Socket(int port) throws IOException {
+		private Socket(int port, int backlog) throws IOException {
 			control = new TcpControlBlock(ip.getLocalAddress(), port);
 			recv_IP_packet = control.createIPPacket();
+			this.backlog = backlog;
+			syn_queue = new ArrayBlockingQueue<Socket>(backlog);
+			accept_queue = new ArrayBlockingQueue<Socket>(backlog);
+			registerListener(this);
+			startHandshakeThread();
+		}
+
+		/**
+		 * Construct the socket of a new connection of the given server socket.
+		 * 
+		 * @param listener
+		 *            the server socket
+		 * @param remoteIp
+		 *            the IP address of the client
+		 * @param remotePort
+		 *            the port of the client
+		 * @throws IOException
+		 */
+		private Socket(Socket listener, int remoteIp, int remotePort) throws IOException {
+			control = new TcpControlBlock(ip.getLocalAddress(), listener.control.tcb_local_port);
+			recv_IP_packet = control.createIPPacket();
+			control.tcb_remote_ip_addr = remoteIp;
+			control.tcb_remote_port = remotePort;
+			// the connection inherits the options of the server socket
+			control.tcb_no_delay = listener.control.tcb_no_delay;
+			control.setReceiveBufferSize(listener.control.tcb_receive_buffer.capacity());
+			control.tcb_congestion_control = listener.control.tcb_congestion_control.newInstance();
+			registerConnection(this);
 		}
 
 
@@ -71,22 +222,23 @@ public class TCP {
 				return false;
 			}
 
-			// get a new free local Port
-			Random rand = new Random();
-			int localPort = rand.nextInt(ConnectionUtils.MAX16BIT_VALUE - 1024) + 1024;
-
 			// we have to be in state CLOSED, when connect is called, otherwise
 			// something went wrong and we return false
 			if (control.tcb_state != ConnectionState.S_CLOSED) {
 				Logging.getInstance().LogConnectionError(control, "TCP has to be in CLOSED state, when calling method 'connect'!");
 				return false;
 			}
+			// a socket, which is connected again after it was closed, gets new metrics
+			if (control.tcb_metrics.retired)
+				control.tcb_metrics = new TcpMetrics(ConnectionState.S_CLOSED);
 
 			// set local and remote IP address and port to the TcpControlBlock
-			// control
+			// control (the local IP address was cleared, if the socket was closed before)
+			control.tcb_local_ip_addr = ip.getLocalAddress().getAddress();
 			control.tcb_remote_ip_addr = dst.getAddress();
-			control.tcb_local_port = localPort;
 			control.tcb_remote_port = port;
+			// get a new free local port and receive the packets of this connection
+			registerClientConnection(this);
 
 			// Start with the three-way handshake here.
 			// Create and send SYN packet
@@ -104,45 +256,122 @@ public class TCP {
 				return false;
 			}
 
-			Logging.getInstance().LogConnectionError(control, "Connection successful > "+dst+":"+port);
+			if (Logging.getInstance().isLoggable(Logging.Level.INFO))
+				Logging.getInstance().LogConnectionInformation(control, "Connection successful > "+dst+":"+port);
 			return true;
 		}
 
 		/**
 		 * Accept a connection on this socket. This call blocks until a
 		 * connection is made.
+		 * 
+		 * @return the socket of the new connection, or null if this is no
+		 *         server socket (or the thread was interrupted).
 		 */
-		public void accept() {
+		public Socket accept() {
 
 			// we have to be in state LISTEN, when accept is called, otherwise
 			// something went wrong and we return
-			if (control.tcb_state != ConnectionState.S_LISTEN) {
+			if (control.tcb_state != ConnectionState.S_LISTEN || accept_queue == null) {
 				Logging.getInstance().LogConnectionError(control, "TCP has to be in LISTEN state, when calling method 'accept'!");
+				return null;
+			}
+
+			// the handshake thread hands over the established connections
+			try {
+				return accept_queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		/**
+		 * Creates the socket of a new connection of this server socket for a
+		 * received SYN packet and queues it for the handshake thread. The
+		 * packet is dropped, if the backlog is full (the client will resend
+		 * it).
+		 * 
+		 * @param packet
+		 *            the received SYN packet
+		 * @param remotePort
+		 *            the port of the client
+		 */
+		void open_connection(IP.Packet packet, int remotePort) {
+			if (syn_queue.size() + accept_queue.size() >= backlog) {
+				Logging.getInstance().LogConnectionInformation(control, "Backlog is full, dropped a connection request.");
+				return;
+			}
+			Socket connection;
+			try {
+				connection = new Socket(this, packet.source, remotePort);
+			} catch (IOException e) {
+				e.printStackTrace();
 				return;
 			}
+			connection.received_IP_packets.offer(packet);
+			syn_queue.offer(connection);
+		}
+
+		/**
+		 * Starts the thread, which does the three-way handshake of the new
+		 * connections of this server socket and queues them for accept.
+		 */
+		private void startHandshakeThread() {
+			handshake_thread = new Thread(new Runnable() {
+				public void run() {
+					while (true) {
+						Socket connection;
+						try {
+							connection = syn_queue.take();
+						} catch (InterruptedException e) {
+							return;
+						}
+						if (!connection.handshake()) {
+							connection.control.resetConnection(ConnectionState.S_CLOSED);
+							continue;
+						}
+						try {
+							accept_queue.put(connection);
+						} catch (InterruptedException e) {
+							connection.control.resetConnection(ConnectionState.S_CLOSED);
+							return;
+						}
+					}
+				}
+			}, "TCP handshake " + control.tcb_local_port);
+			handshake_thread.setDaemon(true);
+			handshake_thread.start();
+		}
 
+		/**
+		 * Does the server side of the three-way handshake: receives the SYN
+		 * packet, sends the SYN/ACK packet and waits for the ACK.
+		 * 
+		 * @return true if the connection was established.
+		 */
+		private boolean handshake() {
 			// Start with the three-way handshake here.
-			while (!recv_tcp_packet(false, true)) {
-				Logging.getInstance().LogTcpPacketError(control, "No SYN packet received, listening...");
-				//return;
+			if (!recv_tcp_packet(false, true)) {
+				Logging.getInstance().LogTcpPacketError(control, "No SYN packet received, connection aborted!");
+				return false;
 			}
 
-			Logging.getInstance().LogTcpPacketError(control, "Client connecting!");
+			Logging.getInstance().LogTcpPacketInformation(control, "Client connecting!");
 			
 			// Create and send SYN/ACK package
 			TcpPacket synack_packet = control
 					.createTcpPacket(null, 0, 0, false);
 			if (synack_packet == null) {
-				control.resetConnection(ConnectionState.S_LISTEN);
-				return;
+				return false;
 			}
 
 			if (!send_tcp_packet(synack_packet, true)) {
 				Logging.getInstance().LogTcpPacketError(control,
 						"Sending SYN/ACK packet failed, 'accept' aborted!");
-				control.resetConnection(ConnectionState.S_LISTEN);
-				return;
+				return false;
 			}
+			return true;
 		}
 
 		/**
@@ -159,32 +388,27 @@ public class TCP {
 		 */
 		public int read(byte[] buf, int offset, int maxlen) {
 
-			long payloadLength = 0;
 			int totalPayloadLength = 0;
-			
-			// check if there is already some data received from before, which was stored in control.tcb_undelivered_data_len
-			// this may happen, when a received packet contains more data then can be delivered, because of the restriction of the parameter 'maxlen'
-			if (control.tcb_undelivered_data_len > 0) {
-				totalPayloadLength = control.tcb_undelivered_data_len;
-				if (totalPayloadLength > maxlen)
-					totalPayloadLength = maxlen;
-				// deliver the undelivered data (by copying to 'buf') 
-				System.arraycopy(control.tcb_undelivered_data, 0, buf, offset, totalPayloadLength);
-				
-				if (totalPayloadLength == maxlen) {
-					control.tcb_undelivered_data_len -= maxlen;
-					System.arraycopy(control.tcb_undelivered_data, totalPayloadLength, control.tcb_undelivered_data, 0, control.tcb_undelivered_data_len);
-					return maxlen;
-				}
-				control.tcb_undelivered_data_len = 0;
-			}
 			// TODO: return -1 on conn close
 			
-			// call receive until at most maxlen bytes have been received
+			// call receive until at most maxlen bytes have been delivered
 			while (totalPayloadLength < maxlen) {
 				
+				synchronized (control) {
+					// deliver the data, which was already received in order, first
+					// (received packets are stored in control.tcb_receive_buffer by acceptReceivedTcpPacket)
+					if (control.tcb_receive_buffer.size() > 0) {
+						totalPayloadLength += control.deliverData(buf, offset + totalPayloadLength, maxlen - totalPayloadLength);
+						continue;
+					}
+					// nothing more will arrive, if the connection is (being) closed
+					if (control.tcb_state != ConnectionState.S_ESTABLISHED) {
+						return totalPayloadLength;
+					}
+				}
+				
 				// Read from the socket here.
-            	if (!recv_tcp_packet(true, false)) {
+            	if (!receive_segment(RECEIVE_TIMEOUT)) {
             		if (totalPayloadLength == 0) {
             			Logging.getInstance().LogTcpPacketError(control,
         						"READ: empty packet");
@@ -193,30 +417,18 @@ public class TCP {
             		else
             			return totalPayloadLength;
             	}
-            	
-            	
-            	TcpPacket tcp = new TcpPacket(this.recv_IP_packet.source, this.recv_IP_packet.destination, this.recv_IP_packet.data, this.recv_IP_packet.length);
-            	payloadLength = tcp.getPayloadLength();
-            	
-            	long realPayloadLength = payloadLength; 
-            	if (totalPayloadLength + payloadLength > maxlen) 
-            		realPayloadLength = maxlen - totalPayloadLength;
-            	
-            	// copy the payload of the received packet to 'buf'
-            	tcp.getPayload(buf, offset+totalPayloadLength, 0, (int)realPayloadLength);
-            	totalPayloadLength += realPayloadLength;
-            	
-            	// if there is some additional received data, which cannot be delivered, then copy it to control.tcb_undelivered_data and deliver it when 'read' is called again 
-            	if (realPayloadLength < payloadLength) {
-            		tcp.getPayload(control.tcb_undelivered_data, 0, (int)realPayloadLength, (int)(payloadLength - realPayloadLength));
-            		control.tcb_undelivered_data_len = (int)(payloadLength - realPayloadLength);
-            	}
 			}
 			return totalPayloadLength;        	
         }
 
 		/**
-		 * Writes to the socket from the buffer.
+		 * Writes to the socket from the buffer. The call returns, once the
+		 * data was sent or collected in the send buffer (see setNoDelay), it
+		 * only waits while the window is full. The ACKs of the data are
+		 * processed later: the packets, which are not acknowledged yet, are
+		 * resent and the collected small writes are sent by the next calls of
+		 * the socket or by the timer of the stack (see on_timer). Close waits
+		 * until all data was acknowledged.
 		 * 
 		 * @param buf
 		 *            the buffer to
@@ -224,58 +436,350 @@ public class TCP {
 		 *            the offset to begin writing data from
 		 * @param len
 		 *            the number of bytes to write
-		 * @return the number of bytes written or -1 if an error occurs.
+		 * @return the number of bytes written or -1 if an error occurs (e.g.
+		 *         the data of an earlier write was not acknowledged).
 		 */
 		public int write(byte[] buf, int offset, int len) {
+			return send_data(buf, offset, len, false);
+		}
+
+		/**
+		 * Sends the given data, see write.
+		 * 
+		 * @param buf
+		 * @param offset
+		 * @param len
+		 * @param waitForACKs
+		 *            true to return only after all sent data was acknowledged
+		 * @return the number of bytes written or -1 if an error occurs.
+		 */
+		private int send_data(byte[] buf, int offset, int len, boolean waitForACKs) {
         	
-        	// copy to buffer
-        	control.tcb_data = buf.clone();
+        	// amount of bytes, which were already handed over to the IP layer
+        	int sentLength = 0;
         	
-        	if (len < TcpPacket.MAX_PAYLOAD_LENGTH) {
-	            // Write to the socket here.       	
-	        	TcpPacket next_packet = control.createTcpPacket(control.tcb_data, offset, len, false);
-	        	if (next_packet == null) {
-	        		Logging.getInstance().LogConnectionInformation(control, "WRITE: created packet is null");
-	        		return -1;
-	        	}
-	        	       	
-	        	if (send_tcp_packet(next_packet, true))
-	        		return len;
-	        	else {
-	        		Logging.getInstance().LogConnectionInformation(control, "WRITE: simple send failed");
-	        		return -1;
-	        	}
-        	}
-        	else {
-        		int segments = len / TcpPacket.MAX_PAYLOAD_LENGTH + 1;
-        		
-        		for (int i=0; i<segments; i++) {
-        			int length = TcpPacket.MAX_PAYLOAD_LENGTH;
-        			if (i==segments-1)
-        				length = len % TcpPacket.MAX_PAYLOAD_LENGTH;
+        	while (true) {
+        		long timeout;
+        		// the time until the next packet may be sent at the pacing rate (in ns)
+        		long pacingDelay = 0;
+        		synchronized (control) {
+        			if (control.tcb_state == ConnectionState.S_CLOSED) {
+        				Logging.getInstance().LogConnectionInformation(control, "WRITE: connection was closed");
+        				return -1;
+        			}
         			
-        			byte[] tempbuf = new byte[length];
-        			for (int k=0; k<length; k++)
-        				tempbuf[k] = control.tcb_data[offset+i*TcpPacket.MAX_PAYLOAD_LENGTH+k];
-        			TcpPacket next_packet = control.createTcpPacket(tempbuf, 0, length, false);
-    	        	if (!send_tcp_packet(next_packet, true)) {
-    	        		Logging.getInstance().LogConnectionInformation(control, "WRITE: send failed "+i);
-    	        		return -1;
-    	        	}
+        			// this call sends the pending data itself, until it returns
+        			send_pending = false;
+        			if (!check_retransmission_timer()) {
+        				Logging.getInstance().LogConnectionInformation(control, "WRITE: no ACK received, send failed");
+        				return -1;
+        			}
+        			
+        			// send as many packets as the window of the other side allows, spread out at the pacing rate
+        			while (true) {
+        				if ((pacingDelay = control.getPacingDelay()) > 0)
+        					break;
+        				TcpPacket next_packet;
+        				if (control.tcb_send_buffer_length == 0 && len - sentLength >= control.tcb_send_mss) {
+        					if (!control.isInsideSendWindow(control.tcb_send_mss))
+        						break;
+        					// a full packet is copied straight from the caller's buffer into the packet
+        					next_packet = control.createTcpPacket(buf, offset + sentLength, control.tcb_send_mss, false);
+        					sentLength += control.tcb_send_mss;
+        				}
+        				else {
+        					// smaller pieces are collected in the send buffer, which is sent as one packet,
+        					// unless it has to wait for the ACKs of the packets in flight (see isNagleDelaying)
+        					if (sentLength < len)
+        						sentLength += control.bufferSendData(buf, offset + sentLength, len - sentLength);
+        					if (control.tcb_send_buffer_length == 0
+        							|| control.isNagleDelaying()
+        							|| !control.isInsideSendWindow(control.tcb_send_buffer_length))
+        						break;
+        					next_packet = control.createTcpPacket(control.tcb_send_buffer, 0, control.tcb_send_buffer_length, false);
+        					control.tcb_send_buffer_length = 0;
+        				}
+        				if (next_packet == null) {
+        					Logging.getInstance().LogConnectionInformation(control, "WRITE: created packet is null");
+        					return -1;
+        				}
+        				// the last packet of the write tells the other side not to delay its ACK
+        				if (sentLength >= len)
+        					next_packet.setPSH_Flag(true);
+        				if (!send_data_packet(next_packet)) {
+        					Logging.getInstance().LogConnectionInformation(control, "WRITE: send failed at byte "+sentLength);
+        					return -1;
+        				}
+        			}
+        			
+        			if (sentLength >= len) {
+        				if (control.tcb_unacked_packets.isEmpty() && control.tcb_send_buffer_length == 0)
+        					break;
+        				if (!waitForACKs) {
+        					// the ACKs are processed later, the timer of the stack takes over meanwhile
+        					// (right away, if the dispatcher queued a packet before it saw send_pending)
+        					send_pending = true;
+        					long delay = received_IP_packets.peek() != null ? 0 : control.getRetransmissionTimerRemaining();
+        					scheduleTimer(this, System.currentTimeMillis() + delay);
+        					break;
+        				}
+        			}
+        			timeout = control.getRetransmissionTimerRemaining();
+        		}
+        		
+        		if (pacingDelay > 0) {
+        			if (pacingDelay < 1000000) {
+        				// shorter than the timeout of receive_segment: sleep until the next packet may be sent
+        				LockSupport.parkNanos(pacingDelay);
+        				continue;
+        			}
+        			timeout = Math.min(timeout, pacingDelay / 1000000);
         		}
         		
-        		return len;
+        		// wait for ACKs, which move the window forward (a concurrent read may process them as well)
+        		if (timeout > 0)
+        			receive_segment(timeout);
         	}
+        	
+        	return len;
         }
 
 		/**
-		 * Non-blocking method that closes the current TCP connection for
-		 * writing. Handles connection tear-down requested by the application,
-		 * not by the peer (via FIN packet).
+		 * Sends the given data packet and keeps it until it is acknowledged,
+		 * in case it has to be resent. The caller holds the lock of the
+		 * control block.
 		 * 
-		 * @return true unless no connection was open.
+		 * @param packet
+		 * @return false if the IP layer failed to send the packet.
+		 */
+		private boolean send_data_packet(TcpPacket packet) {
+			if (control.tcb_unacked_packets.isEmpty())
+				control.restartRetransmissionTimer();
+			control.tcb_unacked_packets.addLast(packet);
+			control.startRTTMeasurement();
+			control.recordDeparture(packet);
+			return send_packet(packet);
+		}
+
+		/**
+		 * Resends the oldest unacknowledged packet, if no ACK arrived within
+		 * the retransmission timeout. The caller holds the lock of the control
+		 * block.
+		 * 
+		 * @return false if the packet was resent too often without any ACK
+		 */
+		private boolean check_retransmission_timer() {
+			if (control.tcb_unacked_packets.isEmpty() || !control.isRetransmissionTimerExpired())
+				return true;
+			// crashed one too many times, admit defeat
+			if (++control.tcb_timeouts_in_row >= MAX_RETRANSMISSIONS)
+				return false;
+			// no ACK within the retransmission timeout: resend the oldest unacknowledged packet
+			TcpPacket lost = control.retransmissionTimeout();
+			if (lost != null)
+				send_packet(lost);
+			return true;
+		}
+
+		/**
+		 * Continues to send the data, which write left behind (see
+		 * send_pending): resends the oldest unacknowledged packet after a
+		 * timeout and sends the collected small writes, once Nagle's algorithm,
+		 * the windows and the pacing rate allow it. The timer of the stack is
+		 * scheduled for the next retransmission timeout. The caller holds the
+		 * lock of the control block.
+		 */
+		private void send_pending_data() {
+			if (!send_pending)
+				return;
+			if (control.tcb_state == ConnectionState.S_CLOSED || !check_retransmission_timer()) {
+				Logging.getInstance().LogConnectionInformation(control, "Pending data was not acknowledged, send failed");
+				send_pending = false;
+				return;
+			}
+			if (control.tcb_send_buffer_length > 0
+					&& !control.isNagleDelaying()
+					&& control.isInsideSendWindow(control.tcb_send_buffer_length)
+					&& control.getPacingDelay() == 0) {
+				TcpPacket packet = control.createTcpPacket(control.tcb_send_buffer, 0, control.tcb_send_buffer_length, false);
+				control.tcb_send_buffer_length = 0;
+				if (packet != null) {
+					packet.setPSH_Flag(true);
+					send_data_packet(packet);
+				}
+			}
+			if (control.tcb_unacked_packets.isEmpty() && control.tcb_send_buffer_length == 0)
+				send_pending = false;
+			else
+				scheduleTimer(this, System.currentTimeMillis() + control.getRetransmissionTimerRemaining());
+		}
+
+		/**
+		 * Enables or disables the delay of small writes (Nagle's algorithm,
+		 * RFC 896). By default small writes, which are made while data is
+		 * not acknowledged yet, are collected and sent as one packet, when
+		 * the ACKs arrive (or a full packet is collected). With no delay,
+		 * each write is sent right away, which is faster for a single small
+		 * message, but sends more packets. A server socket passes the option
+		 * on to its connections.
+		 * 
+		 * @param noDelay
+		 *            true to send small writes right away
+		 */
+		public void setNoDelay(boolean noDelay) {
+			synchronized (control) {
+				control.tcb_no_delay = noDelay;
+			}
+		}
+
+		/**
+		 * @return true if small writes are sent right away (see setNoDelay)
+		 */
+		public boolean getNoDelay() {
+			synchronized (control) {
+				return control.tcb_no_delay;
+			}
+		}
+
+		/**
+		 * Sets the size of the buffer for received, but not yet delivered
+		 * data, which limits the window we advertise. The default of 64 KB
+		 * suits interactive connections, bulk transfers over a path with a
+		 * large bandwidth-delay product need a buffer of several megabytes
+		 * (windows above 64 KB are advertised with the window scale option).
+		 * The size can only be changed before the connection is opened. A
+		 * server socket passes it on to its connections.
+		 * 
+		 * @param size
+		 *            the size in bytes (at most 16 MB)
+		 * @return false if the connection is already opened
+		 */
+		public boolean setReceiveBufferSize(int size) {
+			synchronized (control) {
+				return control.setReceiveBufferSize(size);
+			}
+		}
+
+		/**
+		 * @return the size of the buffer for received data (see
+		 *         setReceiveBufferSize)
+		 */
+		public int getReceiveBufferSize() {
+			synchronized (control) {
+				return control.tcb_receive_buffer.capacity();
+			}
+		}
+
+		/**
+		 * Sets the congestion control algorithm of the connection (by default
+		 * NewReno). It can only be changed before the connection is opened. A
+		 * server socket gives each connection a new instance of it.
+		 * 
+		 * @param congestionControl
+		 * @return false if the connection is already opened
+		 */
+		public boolean setCongestionControl(CongestionControl congestionControl) {
+			synchronized (control) {
+				if (control.tcb_state != ConnectionState.S_CLOSED && control.tcb_state != ConnectionState.S_LISTEN)
+					return false;
+				control.tcb_congestion_control = congestionControl;
+				return true;
+			}
+		}
+
+		/**
+		 * @return the congestion control algorithm of the connection
+		 */
+		public CongestionControl getCongestionControl() {
+			synchronized (control) {
+				return control.tcb_congestion_control;
+			}
+		}
+
+		/**
+		 * Returns the metrics of the connection (e.g. the sent and received
+		 * packets, the retransmissions and the round trip time). After the
+		 * connection was closed, they are kept until it is opened again.
+		 * 
+		 * @return a snapshot of the metrics
+		 */
+		public TcpMetrics getMetrics() {
+			synchronized (control) {
+				return control.getMetrics();
+			}
+		}
+
+		/**
+		 * Closes the current TCP connection for writing. Handles connection
+		 * tear-down requested by the application, and by the peer (via FIN
+		 * packet, see recv_FIN_packet). Blocks until the data of the previous
+		 * writes is acknowledged and the closing handshake is done. The lock of
+		 * the control block is released, while the closing handshake waits for
+		 * packets (see poll_packet).
+		 * 
+		 * @return true unless no connection was open or the data of the
+		 *         previous writes was not acknowledged.
 		 */
 		public boolean close() {
+			boolean closing;
+			synchronized (control) {
+				// a FIN, which is received while closing, is answered by this close (see receive_segment)
+				closing = closing_thread == null;
+				if (closing)
+					closing_thread = Thread.currentThread();
+			}
+			try {
+				// the data of the previous writes is acknowledged before the FIN is sent
+				if (send_pending && send_data(null, 0, 0, true) < 0) {
+					// the other side is gone, it would not acknowledge the FIN either
+					synchronized (control) {
+						if (control.tcb_state != ConnectionState.S_CLOSED) {
+							Logging.getInstance().LogConnectionError(control, "The data of the previous writes was not acknowledged, connection reset!");
+							control.resetConnection(ConnectionState.S_CLOSED);
+						}
+					}
+					return false;
+				}
+				synchronized (control) {
+					// the closing handshake receives packets itself, so no other thread may receive meanwhile
+					boolean acquired = false;
+					while (receiving_thread != null && receiving_thread != Thread.currentThread()) {
+						try {
+							control.wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+					if (receiving_thread == null) {
+						receiving_thread = Thread.currentThread();
+						acquired = true;
+					}
+					try {
+						return close_connection();
+					} finally {
+						if (acquired) {
+							receiving_thread = null;
+							control.notifyAll();
+						}
+					}
+				}
+			} finally {
+				if (closing) {
+					synchronized (control) {
+						closing_thread = null;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Closes the connection, see close. The caller holds the lock of the
+		 * control block and receives the packets of this socket.
+		 * 
+		 * @return true unless no connection was open.
+		 */
+		private boolean close_connection() {
 
 			// CASE 0: "phantom" close
 			// if we are in CLOSED, SYN_SENT or LISTEN state, then we go to
@@ -285,6 +789,12 @@ public class TCP {
 					|| control.tcb_state == ConnectionState.S_LISTEN
 					|| control.tcb_state == ConnectionState.S_TIME_WAIT) {
 				Logging.getInstance().LogConnectionInformation(control, "TCP connection was not established, when calling method 'close'!");
+				if (handshake_thread != null) {
+					// a server socket stops accepting connections
+					unregisterListener(this);
+					handshake_thread.interrupt();
+					handshake_thread = null;
+				}
 				control.resetConnection(ConnectionState.S_CLOSED);
 				return false;
 			}
@@ -292,7 +802,7 @@ public class TCP {
 			// CASE 1: passive close
 			if (this.control.tcb_state == ConnectionState.S_CLOSE_WAIT) {
 				// go to LAST_ACK state
-				control.tcb_state = ConnectionState.S_LAST_ACK;
+				control.setState(ConnectionState.S_LAST_ACK);
 				// must send the client a FIN
 				TcpPacket close_response = control.createTcpPacket(null, 0, 0, true);
 				// we don't check for the result of the send because we close the connection anyway
@@ -306,12 +816,15 @@ public class TCP {
 			if (this.control.tcb_state == ConnectionState.S_SYN_RCVD
 					|| this.control.tcb_state == ConnectionState.S_ESTABLISHED) {
 				// go to FIN_WAIT1 state
-				control.tcb_state = ConnectionState.S_FIN_WAIT_1;
+				control.setState(ConnectionState.S_FIN_WAIT_1);
 				// must send the client a FIN
 				TcpPacket close_response = control.createTcpPacket(null, 0, 0, true);
 				send_tcp_packet(close_response, true);
+				// the FIN of the other side was answered and the connection closed already
+				if (control.tcb_state == ConnectionState.S_CLOSED)
+					return true;
 				// go to TIME_WAIT state
-				control.tcb_state = ConnectionState.S_TIME_WAIT;
+				control.setState(ConnectionState.S_TIME_WAIT);
 				// must send the client an ACK
 				close_response = control.createTcpPacket(null, 0, 0, false);
 				send_tcp_packet(close_response, false);
@@ -326,6 +839,7 @@ public class TCP {
 		/**
 		 * This method sends a TCP packet and if waitForACKAfterSend is true, it also waits for an corresponding ACK.
 		 * If no ACK or an unexpected ACK is received, we resend the packet and again wait for an ACK (we do this up to 10 times).
+		 * The timeout for the ACK is the retransmission timeout of the connection, which is doubled after each timeout.
 		 * @param tcpPacketToSend
 		 * @param waitForACKAfterSend
 		 * @return
@@ -339,11 +853,19 @@ public class TCP {
 
 			// for a maximum of 10 retries
 			int i = 0;
-			while (i < 10) {
+			while (i < MAX_RETRANSMISSIONS) {
 				try {
+					// measure the round trip time only if the packet was not resent
+					if (i == 0)
+						control.startRTTMeasurement();
+					else
+						control.tcb_rtt_measuring = false;
+
 					// try sending or simulate a lost TcpPacket
+					if (i > 0)
+						control.tcb_metrics.retransmissions++;
 					if (!PacketLossControl.getInstance().IsTcpPacketLost(tcpPacketToSend, control.tcb_state)) {
-						ip.ip_send(this.sent_IP_packet);
+						send_ip_packet(this.sent_IP_packet);
 					}
 
 					// dont wait for ACKs during connection setup/teardown
@@ -351,7 +873,12 @@ public class TCP {
 						return true;
 
 					// wait for ACK
-					ip.ip_receive_timeout(recv_IP_packet, 1);
+					if (!poll_packet(control.getRetransmissionTimeoutMillis())) {
+						// no ACK received within timeout, retry => increase counter
+						control.backoffRetransmissionTimeout();
+						i++;
+						continue;
+					}
 					// check for "garbage" packages which do not count
 					if (recv_IP_packet == null)
 						continue;
@@ -362,7 +889,7 @@ public class TCP {
 							if (tcpPacket.isFIN_Flag()
 									&& !tcpPacket.isACK_Flag()) {
 								// active close (slow)
-								control.tcb_state = ConnectionState.S_CLOSING;
+								control.setState(ConnectionState.S_CLOSING);
 								// create ACK packet
 								TcpPacket reply = this.control.createTcpPacket(null, 0, 0, false);
 								// make sure ACK flag is set
@@ -370,14 +897,12 @@ public class TCP {
 								// create IP packet
 								IP.Packet encoded = this.control.createIPPacket(reply);
 								// send ACK
-								ip.ip_send(encoded);
+								send_ip_packet(encoded);
 								// enter timeout mode
-								control.tcb_state = ConnectionState.S_TIME_WAIT;
+								control.setState(ConnectionState.S_TIME_WAIT);
 								try {
-									// wait for ACK with double timeout
-									ip.ip_receive_timeout(recv_IP_packet, 2);
-								} catch (InterruptedException e) {
-									// ignore timeout
+									// wait for ACK with double timeout (ignore timeout)
+									poll_packet(2 * RECEIVE_TIMEOUT);
 								} finally {
 									// we close the connection regardless of the received packet
 									this.close();
@@ -387,7 +912,7 @@ public class TCP {
 							} else if (tcpPacket.isFIN_Flag()
 									&& tcpPacket.isACK_Flag()) {
 								// active close (fast)
-								control.tcb_state = ConnectionState.S_TIME_WAIT;
+								control.setState(ConnectionState.S_TIME_WAIT);
 								// create ACK packet
 								TcpPacket reply = this.control.createTcpPacket(
 										null, 0, 0, false);
@@ -397,12 +922,10 @@ public class TCP {
 								IP.Packet encoded = this.control
 										.createIPPacket(reply);
 								// send ACK
-								ip.ip_send(encoded);
+								send_ip_packet(encoded);
 								try {
-									// wait for ACK with double timeout
-									ip.ip_receive_timeout(recv_IP_packet, 2);
-								} catch (InterruptedException e) {
-									// ignore timeout
+									// wait for ACK with double timeout (ignore timeout)
+									poll_packet(2 * RECEIVE_TIMEOUT);
 								} finally {
 									// we close the connection regardless of the received packet
 									this.close();
@@ -412,7 +935,7 @@ public class TCP {
 							} else if (!tcpPacket.isFIN_Flag()
 									&& tcpPacket.isACK_Flag()) {
 								// active close (slow)
-								control.tcb_state = ConnectionState.S_FIN_WAIT_2;
+								control.setState(ConnectionState.S_FIN_WAIT_2);
 								// create FIN packet
 								TcpPacket reply = this.control.createTcpPacket(
 										null, 0, 0, false);
@@ -420,14 +943,12 @@ public class TCP {
 								IP.Packet encoded = this.control
 										.createIPPacket(reply);
 								// enter timeout mode
-								control.tcb_state = ConnectionState.S_TIME_WAIT;
+								control.setState(ConnectionState.S_TIME_WAIT);
 								// send FIN
-								ip.ip_send(encoded);
+								send_ip_packet(encoded);
 								try {
-									// wait for ACK with double timeout
-									ip.ip_receive_timeout(recv_IP_packet, 2);
-								} catch (InterruptedException e) {
-									// ignore timeout
+									// wait for ACK with double timeout (ignore timeout)
+									poll_packet(2 * RECEIVE_TIMEOUT);
 								} finally {
 									// we close the connection regardless of the received packet
 									this.close();
@@ -450,8 +971,9 @@ public class TCP {
 							// replace with old packet
 							this.sent_IP_packet = control.lastReceivedPacket;
 							// try sending or simulate a lost TcpPacket
+							control.tcb_metrics.retransmissions++;
 							if (!PacketLossControl.getInstance().IsTcpPacketLost(tcpPacketToSend, control.tcb_state)) {
-								ip.ip_send(this.sent_IP_packet);
+								send_ip_packet(this.sent_IP_packet);
 							}
 							// replace with stored packet 
 							this.sent_IP_packet = aux;
@@ -465,98 +987,345 @@ public class TCP {
 					e.printStackTrace();
 					// sending failed, retry => increase counter
 					i++;
-
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					// no ACK received within timeout, retry => increase counter
-					i++;
 				}
 			}
 			// crashed one too many times, admit defeat
-			if (i >= 10)
+			if (i >= MAX_RETRANSMISSIONS)
 				return false;
 			return true;
 		}
 
 		/**
-		 * If an IP packet is received, the packet is verified (verifyReceivedPacket) and if this is successful, it is accepted (acceptReceivedPacket).
-		 * If an unexpected packet is received (e.g. wrong SEQ number), the previous sent packet is sent again and we wait to receive another packet.
-		 * If we receive 10 times an unexpected packet, false is returned.
+		 * Waits for the next packet, which was dispatched to this socket, and
+		 * stores it in recv_IP_packet. If the caller holds the lock of the
+		 * control block (e.g. during the closing handshake), the lock is
+		 * released while waiting, so the other threads of the stack (like the
+		 * delayed ACK timer) are not blocked for several retransmission
+		 * timeouts. The dispatcher wakes the caller up (see packet_queued).
 		 * 
-		 * @param sendACKAfterReceive: If sendACKAfterReceive is true, then an ACK packet is send, after we successfully received an expected packet.
-		 * @param acceptNewConnection: if acceptNewConnection is true, then the source-ip/-port of the packet are set for a new connection.
-		 * @return
+		 * @param timeout the time (in ms) to wait for a packet
+		 * @return false if no packet was received within the timeout
 		 */
-		private boolean recv_tcp_packet(boolean sendACKAfterReceive, boolean acceptNewConnection) {
+		private boolean poll_packet(long timeout) {
+			if (!Thread.holdsLock(control))
+				return received_IP_packets.poll(recv_IP_packet, timeout);
 
+			long deadline = System.currentTimeMillis() + timeout;
+			releasing_lock = true;
 			try {
-				TcpPacket tcpPacket = null;
-				for (int i=0; i<10; i++) {
-					// wait for packet
-					ip.ip_receive_timeout(recv_IP_packet, 1);
-					// check if real packet has been received
-					if (recv_IP_packet == null)
-						continue;
-	
-					// verify the packet
-					tcpPacket = control.verifyReceivedPacket(this.recv_IP_packet, acceptNewConnection);
-					if (tcpPacket != null) {
-						// received a valid packet, break out from the for loop (which is used to resend old packages in case of received packages)
-						break;
-					}
-					else {
-						// Re-send old package
-						ip.ip_send(this.sent_IP_packet);
-						Logging.getInstance().LogConnectionInformation(control, "Resend previous packet, because received packet was not an expected packet!");
+				while (!received_IP_packets.pollNow(recv_IP_packet)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						return false;
+					try {
+						control.wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
 					}
 				}
+				return true;
+			} finally {
+				releasing_lock = false;
+			}
+		}
 
-				if (tcpPacket == null) {
-					return false;	// we didnt get a packet we expected => return false
-				}
-				
-				// check if the received packet has the correct flags
-				if (!control.acceptReceivedTcpPacket(tcpPacket)) {
-					return false; // correct, but unexpected packet -> dont wait for resend, just return false
+		/**
+		 * Called by the dispatcher after it queued a packet for this socket:
+		 * wakes up the receiving thread, if it waits in poll_packet without
+		 * holding the lock of the control block, or the timer of the stack,
+		 * if write left data behind.
+		 */
+		void packet_queued() {
+			if (releasing_lock) {
+				synchronized (control) {
+					control.notifyAll();
 				}
-				
-				if (tcpPacket.isFIN_Flag()) {
-					// check state
-					if (control.tcb_state == ConnectionState.S_ESTABLISHED) {
-						// passive close
-						control.tcb_state = ConnectionState.S_CLOSE_WAIT;
-						// create ACK packet
-						TcpPacket reply = this.control.createTcpPacket(null, 0, 0, false);
-						// make sure ACK flag is set
-						reply.setACK_Flag(true);
-						// create IP packet
-						IP.Packet encoded = this.control.createIPPacket(reply);
-						// send ACK
-						ip.ip_send(encoded);
-						// close connection
-						this.close();
-					} else if (control.tcb_state == ConnectionState.S_FIN_WAIT_1) {
-						// active close (fast)
-						control.tcb_state = ConnectionState.S_TIME_WAIT;
-						// create FIN+ACK packet
-						TcpPacket reply = this.control.createTcpPacket(null, 0, 0, true);
-						// make sure ACK flag is set
-						reply.setACK_Flag(true);
-						// create IP packet
-						IP.Packet encoded = this.control.createIPPacket(reply);
-						// send FIN+ACK
-						ip.ip_send(encoded);
-						// wait for ACK packet (twice longer than normal)
-						try {
-							ip.ip_receive_timeout(recv_IP_packet, 2);
-						} catch (InterruptedException e) {
-							// ignore timeout
-						} finally {
-							// we close the connection regardless of the
-							// received packet
-							this.close();
+			}
+			// the packet may be an ACK of the pending data
+			if (send_pending)
+				scheduleTimer(this, System.currentTimeMillis());
+		}
+
+		/**
+		 * Sends the given IP packet and counts it in the metrics of the
+		 * connection.
+		 * 
+		 * @param packet
+		 * @throws IOException
+		 */
+		private void send_ip_packet(IP.Packet packet) throws IOException {
+			ip.ip_send(packet);
+			control.countSentPacket(packet);
+		}
+
+		/**
+		 * Sends the given TCP packet without waiting for an ACK.
+		 * 
+		 * @param tcpPacket
+		 * @return false if the IP layer failed to send the packet.
+		 */
+		private boolean send_packet(TcpPacket tcpPacket) {
+			try {
+				// try sending or simulate a lost TcpPacket
+				if (!PacketLossControl.getInstance().IsTcpPacketLost(tcpPacket, control.tcb_state)) {
+					send_ip_packet(control.fillIPPacket(control.tcb_send_IP_packet, tcpPacket));
+				}
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		/**
+		 * Waits for a packet of the established connection and processes it (see process_segment).
+		 * <br/>
+		 * The reading and the writing thread of a socket may wait for packets at the same time. Only one of
+		 * them (the receiving_thread) takes the packets from received_IP_packets, the other one waits until
+		 * a packet was processed and then checks, if the packet was for it (e.g. new data for the reader
+		 * or an ACK for the writer). The state of the connection is only changed while holding the lock of
+		 * the control block, but the lock is not held while waiting for packets, so the other thread can
+		 * send meanwhile.
+		 * 
+		 * @param timeout the time (in ms) to wait for a packet
+		 * @return false if no packet was processed within the timeout, otherwise true.
+		 */
+		private boolean receive_segment(long timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			synchronized (control) {
+				long processed = processed_packets;
+				while (receiving_thread != null) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						return false;
+					try {
+						control.wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+					if (processed != processed_packets)
+						return true;
+				}
+				receiving_thread = Thread.currentThread();
+			}
+
+			boolean received = false;
+			boolean passive_close;
+			try {
+				received = poll_packet(Math.max(deadline - System.currentTimeMillis(), 1));
+				if (received) {
+					synchronized (control) {
+						process_segment();
+						processed_packets++;
+					}
+				}
+			} finally {
+				synchronized (control) {
+					receiving_thread = null;
+					control.notifyAll();
+					// a FIN of the other side is answered, once this thread does not receive any more
+					passive_close = control.tcb_state == ConnectionState.S_CLOSE_WAIT && closing_thread == null;
+				}
+			}
+			if (passive_close)
+				close();
+			return received;
+		}
+
+		/**
+		 * Processes the received packet of an established connection. The caller holds the lock of the
+		 * control block. The packet is one of the following:
+		 * <ul>
+		 * <li>data: it is stored in the receive buffer for the reader and acknowledged.</li>
+		 * <li>ACK: the (cumulative) ACK number removes the acknowledged packets of the writer (this is done
+		 * for data packets as well).</li>
+		 * <li>control: a FIN closes the connection.</li>
+		 * </ul>
+		 * If the other side resent a packet we already received, it did not get our last packets (e.g. the ACK of the
+		 * connection setup got lost): we acknowledge it again and resend the oldest unacknowledged packet.
+		 */
+		private void process_segment() {
+			TcpPacket tcpPacket = control.verifyReceivedPacket(this.recv_IP_packet, false);
+			if (tcpPacket == null) {
+				if (control.verifyReceivedFailure == PacketVerifyFailure.F_WRONG_SEQ) {
+					send_packet(control.createACKPacket());
+					if (!control.tcb_unacked_packets.isEmpty()) {
+						control.tcb_metrics.retransmissions++;
+						send_packet(control.tcb_unacked_packets.peekFirst());
+					}
+				}
+				return;
+			}
+
+			if (!control.acceptReceivedTcpPacket(tcpPacket))
+				return;
+
+			// duplicate ACKs or SACK blocks reported lost packets: resend them without waiting for the timeout
+			TcpPacket lost = control.nextRetransmission();
+			if (lost != null) {
+				control.tcb_rtt_measuring = false;
+				control.restartRetransmissionTimer();
+				do {
+					send_packet(lost);
+				} while ((lost = control.nextRetransmission()) != null);
+			}
+
+			if (tcpPacket.isFIN_Flag()) {
+				try {
+					recv_FIN_packet();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			else if (tcpPacket.getPayloadLength() > 0) {
+				// acknowledge the data (packets without payload, which are ACKs themselves, are not acknowledged),
+				// but give the application the chance to send the ACK together with its next data
+				if (!control.delayACK(tcpPacket)) {
+					send_packet(control.createACKPacket());
+				}
+				else if (control.tcb_delayed_ack_deadline == 0) {
+					control.tcb_delayed_ack_deadline = System.currentTimeMillis() + DELAYED_ACK_TIMEOUT;
+					scheduleTimer(this, control.tcb_delayed_ack_deadline);
+				}
+			}
+
+			// the ACK may let the data of an earlier write go
+			send_pending_data();
+		}
+
+		/**
+		 * Called by the timer of the stack: sends the delayed ACK, unless it
+		 * was already sent together with data in the meantime, and continues to
+		 * send the data, which write left behind. The packets, which arrived
+		 * meanwhile, are processed, unless another thread receives them. A FIN
+		 * is left to the next call of the application, because its handshake
+		 * waits for packets and would block the timer.
+		 */
+		void on_timer() {
+			synchronized (control) {
+				if (control.tcb_delayed_ack_deadline != 0) {
+					if (control.tcb_delayed_ack_deadline <= System.currentTimeMillis())
+						send_packet(control.createACKPacket());
+					else // the timer was due for the pending data
+						scheduleTimer(this, control.tcb_delayed_ack_deadline);
+				}
+				if (!send_pending)
+					return;
+				if (receiving_thread == null) {
+					receiving_thread = Thread.currentThread();
+					try {
+						IP.Packet next;
+						while ((next = received_IP_packets.peek()) != null
+								&& (getFlags(next) & TcpPacket.FLAG_FIN) == 0
+								&& received_IP_packets.pollNow(recv_IP_packet)) {
+							process_segment();
+							processed_packets++;
 						}
+					} finally {
+						receiving_thread = null;
+						control.notifyAll();
+					}
+				}
+				send_pending_data();
+			}
+		}
+
+		/**
+		 * Answers a received and accepted FIN packet: a FIN in ESTABLISHED state closes the connection
+		 * passively, a FIN in FIN_WAIT_1 state finishes the active close.
+		 * 
+		 * @throws IOException
+		 */
+		private void recv_FIN_packet() throws IOException {
+			// check state
+			if (control.tcb_state == ConnectionState.S_ESTABLISHED) {
+				// passive close
+				control.setState(ConnectionState.S_CLOSE_WAIT);
+				// create ACK packet
+				TcpPacket reply = this.control.createTcpPacket(null, 0, 0, false);
+				// make sure ACK flag is set
+				reply.setACK_Flag(true);
+				// create IP packet
+				IP.Packet encoded = this.control.createIPPacket(reply);
+				// send ACK
+				send_ip_packet(encoded);
+				// the connection is closed by the receiving thread, once it released the receiving role
+				// (see receive_segment), because close waits for packets itself
+			} else if (control.tcb_state == ConnectionState.S_FIN_WAIT_1) {
+				// active close (fast)
+				control.setState(ConnectionState.S_TIME_WAIT);
+				// create FIN+ACK packet
+				TcpPacket reply = this.control.createTcpPacket(null, 0, 0, true);
+				// make sure ACK flag is set
+				reply.setACK_Flag(true);
+				// create IP packet
+				IP.Packet encoded = this.control.createIPPacket(reply);
+				// send FIN+ACK
+				send_ip_packet(encoded);
+				// wait for ACK packet (twice longer than normal, ignore timeout)
+				try {
+					poll_packet(2 * RECEIVE_TIMEOUT);
+				} finally {
+					// we close the connection regardless of the
+					// received packet
+					this.close();
+				}
+			}
+		}
+
+		/**
+		 * If an IP packet is received, the packet is verified (verifyReceivedPacket) and if this is successful, it is accepted (acceptReceivedPacket).
+		 * If an unexpected packet is received (e.g. wrong SEQ number), the previous sent packet is sent again and we wait to receive another packet.
+		 * If we receive 10 times an unexpected packet, false is returned.
+		 * 
+		 * @param sendACKAfterReceive: If sendACKAfterReceive is true, then an ACK packet is send, after we successfully received an expected packet.
+		 * @param acceptNewConnection: if acceptNewConnection is true, then the source-ip/-port of the packet are set for a new connection.
+		 * @return
+		 */
+		private boolean recv_tcp_packet(boolean sendACKAfterReceive, boolean acceptNewConnection) {
+
+			try {
+				TcpPacket tcpPacket = null;
+				for (int i=0; i<10; i++) {
+					// wait for packet, give up on timeout
+					if (!poll_packet(RECEIVE_TIMEOUT))
+						return false;
+					// check if real packet has been received
+					if (recv_IP_packet == null)
+						continue;
+	
+					// verify the packet
+					tcpPacket = control.verifyReceivedPacket(this.recv_IP_packet, acceptNewConnection);
+					if (tcpPacket != null) {
+						// received a valid packet, break out from the for loop (which is used to resend old packages in case of received packages)
+						break;
+					}
+					else if (control.tcb_state == ConnectionState.S_ESTABLISHED
+							&& control.verifyReceivedFailure == PacketVerifyFailure.F_WRONG_SEQ) {
+						// the other side resent data, which we already received, therefore our ACK got lost: acknowledge it again
+						send_packet(control.createACKPacket());
+					}
+					else {
+						// Re-send old package
+						control.tcb_metrics.retransmissions++;
+						send_ip_packet(this.sent_IP_packet);
+						Logging.getInstance().LogConnectionInformation(control, "Resend previous packet, because received packet was not an expected packet!");
 					}
+				}
+
+				if (tcpPacket == null) {
+					return false;	// we didnt get a packet we expected => return false
+				}
+				
+				// check if the received packet has the correct flags
+				if (!control.acceptReceivedTcpPacket(tcpPacket)) {
+					return false; // correct, but unexpected packet -> dont wait for resend, just return false
+				}
+				
+				if (tcpPacket.isFIN_Flag()) {
+					recv_FIN_packet();
 					// recv failed
 					return false;
 				}
@@ -564,8 +1333,9 @@ public class TCP {
 
 
 				// dont send ACK packets, just return true, because of a
-				// successful receive
-				if (!sendACKAfterReceive)
+				// successful receive (packets without payload, which are
+				// ACKs themselves, are not acknowledged)
+				if (!sendACKAfterReceive || tcpPacket.getPayloadLength() == 0)
 					return true;
 
 				// create ACK packet
@@ -575,20 +1345,14 @@ public class TCP {
 				// create IP packet
 				IP.Packet encoded = this.control.createIPPacket(reply);
 				// send ACK
-				ip.ip_send(encoded);
+				send_ip_packet(encoded);
 				// exit current waiting loop
 				return true;
 			} catch (IOException e) {
 				// connection forcely terminated => abort
 				e.printStackTrace();
 				return false;
-			} catch (InterruptedException e) {
-				// timed out, try again
-				e.printStackTrace();
 			}
-
-			// not successfully received
-			return false;
 		}
 
 		
@@ -626,9 +1390,66 @@ public class TCP {
 		/** Maximum Payload length (8KB - 40 byte headers) */
 		static final int MAX_PAYLOAD_LENGTH = 8152;
 		
-		/** TCP header size is 20B */
+		/** TCP header size is 20B (without options) */
 		static final int HEADER_SIZE = 20;
 
+		/** The offset of the flags in the TCP header */
+		static final int FLAGS_OFFSET = 13;
+
+		/** The FIN flag (in the flags of the TCP header) */
+		static final int FLAG_FIN = 0x01;
+
+		/** The SYN flag (in the flags of the TCP header) */
+		static final int FLAG_SYN = 0x02;
+
+		/** The ACK flag (in the flags of the TCP header) */
+		static final int FLAG_ACK = 0x10;
+
+		/** The maximum TCP header size: the data offset allows up to 40 bytes of options */
+		static final int MAX_HEADER_SIZE = 60;
+
+		/** Option kind: end of the option list (RFC 793) */
+		static final int OPTION_END = 0;
+
+		/** Option kind: no operation, used to align the following option (RFC 793) */
+		static final int OPTION_NOP = 1;
+
+		/** Option kind: maximum segment size, only in SYN packets (RFC 793) */
+		static final int OPTION_MSS = 2;
+
+		/** The length of the MSS option */
+		static final int MSS_OPTION_LENGTH = 4;
+
+		/** Option kind: the shift count of the windows of the sender, only in SYN packets (RFC 7323) */
+		static final int OPTION_WINDOW_SCALE = 3;
+
+		/** The length of the window scale option (aligned by a NOP) */
+		static final int WINDOW_SCALE_OPTION_LENGTH = 4;
+
+		/** The maximum shift count of the window scale option */
+		static final int MAX_WINDOW_SCALE = 14;
+
+		/** The maximum value of the window field */
+		static final int MAX_WINDOW = 0xFFFF;
+
+		/** Option kind: the sender accepts SACK options, only in SYN packets (RFC 2018) */
+		static final int OPTION_SACK_PERMITTED = 4;
+
+		/** The length of the SACK permitted option (aligned by two NOPs) */
+		static final int SACK_PERMITTED_OPTION_LENGTH = 4;
+
+		/** Option kind: selective acknowledgement of received blocks of data (RFC 2018) */
+		static final int OPTION_SACK = 5;
+
+		/** The maximum amount of blocks in a SACK option, which fit into the option space */
+		static final int MAX_SACK_BLOCKS = 4;
+
+		/** The length of a SACK option (aligned by two NOPs) without blocks */
+		static final int SACK_OPTION_LENGTH = 4;
+
+		/** The length of each block in a SACK option */
+		static final int SACK_BLOCK_LENGTH = 8;
+
 		/** the source IP address, which is needed for calculation of the checksum*/
 		int source_ip;
 
@@ -648,6 +1469,48 @@ public class TCP {
 		/** the length of the TCP packet */
 		int packetLength;
 
+		/** the length of the TCP header including the options (the data offset in bytes) */
+		int headerLength;
+
+		/*
+		 * the header fields, which are decoded once per packet (see
+		 * decodeHeader), so the getters do not parse rawData again
+		 */
+		int source_port;
+		int destination_port;
+		long seq_nr;
+		long ack_nr;
+		byte flags;
+		int window;
+
+		/** the end of the options, which were added so far (only used when creating TCP packets) */
+		int optionsEnd;
+
+		/** true, if the other side reported in a SACK option, that it received this sent packet */
+		boolean sacked;
+
+		/** true, if this sent packet was resent during the current fast recovery */
+		boolean retransmitted;
+
+		/** the acknowledged bytes of the connection, when this packet was sent (see recordDeparture) */
+		long delivered;
+
+		/** the time (System.nanoTime) of the last ACK before this packet was sent */
+		long deliveredTime;
+
+		/**
+		 * the partial checksum of the payload, which is computed while the
+		 * payload is copied into a created packet, so only the header is
+		 * added, when the packet is sent (-1 for received packets)
+		 */
+		long payloadSum = -1;
+
+		/** the buffer, behind whose data the payload of this received packet was copied (see verifyChecksum) */
+		RingBuffer stagedBuffer;
+
+		/** true, if this received packet matched the header prediction (see TcpControlBlock.predictSegment) */
+		boolean predicted;
+
 		/**
 		 * Constructor used when a IP packet has been received (for verifying
 		 * the content of the received data)
@@ -658,11 +1521,67 @@ public class TCP {
 		 */
 		public TcpPacket(int source_IpAddress, int destination_IpAddress,
 				byte[] tcpData, int length) {
+			wrap(source_IpAddress, destination_IpAddress, tcpData, length);
+		}
+
+		/**
+		 * Constructor used for a packet, which is reused for the received
+		 * packets (see wrap)
+		 */
+		TcpPacket() {
+		}
+
+		/**
+		 * Makes this packet a view of another received packet, so the control
+		 * block needs no new objects per received packet (see
+		 * TcpControlBlock.verifyReceivedPacket). The header is decoded once.
+		 * 
+		 * @param source_IpAddress
+		 * @param destination_IpAddress
+		 * @param tcpData
+		 * @param length
+		 */
+		void wrap(int source_IpAddress, int destination_IpAddress,
+				byte[] tcpData, int length) {
 			source_ip = source_IpAddress;
 			destination_ip = destination_IpAddress;
 
-			rawData = ByteBuffer.wrap(tcpData, 0, length);
+			if (rawData == null || rawData.array() != tcpData) {
+				rawData = ByteBuffer.wrap(tcpData);
+			}
+			rawData.clear();
+			rawData.limit(length);
 			packetLength = length;
+			// the data offset counts 32-bit words (verifyReceivedPacket checks, that it is valid)
+			headerLength = length > 12 ? ((rawData.get(12) >> 4) & 0xF) * 4 : HEADER_SIZE;
+
+			payloadSum = -1;
+			stagedBuffer = null;
+			predicted = false;
+			decodeHeader();
+		}
+
+		/**
+		 * Decodes the fixed header fields with two reads of 8 bytes (a packet,
+		 * which is too short, has only zeros, it fails the verification of the
+		 * data offset).
+		 */
+		private void decodeHeader() {
+			if (packetLength < HEADER_SIZE) {
+				source_port = destination_port = window = flags = 0;
+				seq_nr = ack_nr = 0;
+				return;
+			}
+			// ports and SEQ number
+			long word = rawData.getLong(0);
+			source_port = (int) (word >>> 48);
+			destination_port = (int) (word >>> 32) & 0xFFFF;
+			seq_nr = word & 0xFFFFFFFFL;
+			// ACK number, data offset, flags and window
+			word = rawData.getLong(8);
+			ack_nr = word >>> 32;
+			flags = (byte) (word >>> 16);
+			window = (int) word & 0xFFFF;
 		}
 
 		/**
@@ -680,6 +1599,41 @@ public class TCP {
 		public TcpPacket(int source_IpAddress, int destination_IpAddress,
 				int source_port, int destination_port, long seq_nr,
 				long ack_nr, byte[] payload) {
+			this(source_IpAddress, destination_IpAddress, source_port, destination_port, seq_nr, ack_nr,
+					payload == null ? null : ByteBuffer.wrap(payload), 0, payload == null ? 0 : payload.length, 0, null);
+		}
+
+		/**
+		 * Constructor used to create a new TCP packet in the given buffer (to
+		 * create a TCP packet, which should be sent). The header is encoded
+		 * directly into the buffer and the payload is copied once.
+		 * 
+		 * @param source_IpAddress
+		 * @param destination_IpAddress
+		 * @param source_port
+		 * @param destination_port
+		 * @param seq_nr
+		 * @param ack_nr
+		 * @param payload
+		 *            the array with the payload, wrapped by a ByteBuffer (see
+		 *            TcpControlBlock.wrapPayload)
+		 * @param offset
+		 *            the offset of the payload in the payload array
+		 * @param payloadLength
+		 *            the length of the payload
+		 * @param optionsLength
+		 *            the space reserved for options (a multiple of 4, up to
+		 *            40 bytes), which are added by the add...Option methods
+		 * @param packetBuffer
+		 *            the buffer for the packet (starting at position 0), which
+		 *            must hold at least HEADER_SIZE + optionsLength +
+		 *            payloadLength bytes. If it is null, a buffer with exactly
+		 *            this size is allocated.
+		 */
+		TcpPacket(int source_IpAddress, int destination_IpAddress,
+				int source_port, int destination_port, long seq_nr,
+				long ack_nr, ByteBuffer payload, int offset, int payloadLength,
+				int optionsLength, ByteBuffer packetBuffer) {
 			source_ip = source_IpAddress;
 			destination_ip = destination_IpAddress;
 
@@ -710,21 +1664,26 @@ public class TCP {
 						"Wrong value for ACK number!");
 			}
 
-			if (payload != null && payload.length > MAX_PAYLOAD_LENGTH) {
+			if (payloadLength > MAX_PAYLOAD_LENGTH) {
 				throw new InvalidParameterException(
 						"Payload length is only allowed up to "
 								+ MAX_PAYLOAD_LENGTH + " Bytes.");
 			}
 
-			// Reserve space for the TCP packet
-			int payloadLength = 0;
-			if (payload != null)
-				payloadLength = payload.length;
+			if (optionsLength < 0 || HEADER_SIZE + optionsLength > MAX_HEADER_SIZE || (optionsLength & 3) != 0) {
+				throw new InvalidParameterException(
+						"Options length must be a multiple of 4 up to "
+								+ (MAX_HEADER_SIZE - HEADER_SIZE) + " Bytes.");
+			}
 
-			rawData = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+			// Reserve space for the TCP packet
+			if (packetBuffer == null)
+				packetBuffer = ByteBuffer.allocate(HEADER_SIZE + optionsLength + payloadLength);
+			rawData = packetBuffer;
+			headerLength = HEADER_SIZE + optionsLength;
 
 			fillTcpPacket(source_port, destination_port, seq_nr, ack_nr,
-					payload);
+					payload, offset, payloadLength);
 		}
 
 		/**
@@ -732,37 +1691,18 @@ public class TCP {
 		 * ACK-Flag,...) to default values
 		 * */
 		private void fillTcpPacket(int source_port, int destination_port,
-				long seq_nr, long ack_nr, byte[] payload) {
-			// Check byte ordering (little endian vs. big endian): host uses big endian
-			byte[] raw_src_port = ByteBuffer.allocate(4).putInt(source_port)
-					.array();
-			byte[] raw_dest_port = ByteBuffer.allocate(4)
-					.putInt(destination_port).array();
-			byte[] raw_seq_nr = ByteBuffer.allocate(8).putLong(seq_nr).array();
-			byte[] raw_ack_nr = ByteBuffer.allocate(8).putLong(ack_nr).array();
-
+				long seq_nr, long ack_nr, ByteBuffer payload, int offset, int payloadLength) {
 			// set the source_port, destination_port, seq_nr and ack_nr in the rawData of the TCP packet
-			// because we are using big endian we ignore the first half of each int/long when extracting short/int from them
-			rawData.put(0, raw_src_port[2]);
-			rawData.put(1, raw_src_port[3]);
-			
-			rawData.put(2, raw_dest_port[2]);
-			rawData.put(3, raw_dest_port[3]);
-			
-			rawData.put(4, raw_seq_nr[4]);
-			rawData.put(5, raw_seq_nr[5]);
-			rawData.put(6, raw_seq_nr[6]);
-			rawData.put(7, raw_seq_nr[7]);
-
-			rawData.put(8, raw_ack_nr[4]);
-			rawData.put(9, raw_ack_nr[5]);
-			rawData.put(10, raw_ack_nr[6]);
-			rawData.put(11, raw_ack_nr[7]);
+			// (ByteBuffer uses big endian, so the casts keep the lower 16/32 bits we need)
+			rawData.putShort(0, (short) source_port);
+			rawData.putShort(2, (short) destination_port);
+			rawData.putInt(4, (int) seq_nr);
+			rawData.putInt(8, (int) ack_nr);
 
 			// STATUS: 12 bytes set, 8 remaining in header
-			// TCP header length: in our case we have no Options, therefore the header has a fixed length of 5 32-bit words
+			// TCP header length: 5 32-bit words plus the space reserved for options
 			// STATUS: next byte is for DATA OFFSET, RESERVED and NS
-			rawData.put(12, (byte) (5 << 4));
+			rawData.put(12, (byte) ((headerLength / 4) << 4));
 
 			// although follwing code has a bad performance, it is more readable
 			int flags = 0 << 5 // urgent flag, which is always false in our case
@@ -776,9 +1716,9 @@ public class TCP {
 					// method setFIN_Flag
 			rawData.put(13, (byte) flags);
 
-			// Window Size: since we implement the stopngo protocol, we ignore
-			// the window size and set it to the maximum size
-			// of one packet on all outgoing packets, which is 8KB = 8192 byte
+			// Window Size: by default the maximum size of one packet, which is
+			// 8KB = 8192 byte. The TcpControlBlock replaces it by the window,
+			// which it actually advertises (see createTcpPacket)
 			rawData.putShort(14, (short) 8192);
 
 			// Checksum: is by default 0
@@ -788,163 +1728,400 @@ public class TCP {
 			// supported
 			rawData.putShort(18, (short) 0);
 
-			// Set the payload
-			int payloadLength = 0;
-			if (payload != null) {
-				payloadLength = payload.length;
-				rawData.position(HEADER_SIZE);
-				rawData.put(payload);
+			// Options: the reserved space is filled with END options, until
+			// the options are added
+			for (int i = HEADER_SIZE; i < headerLength; i++) {
+				rawData.put(i, (byte) OPTION_END);
+			}
+			optionsEnd = HEADER_SIZE;
+
+			// Set the payload and add it to the checksum in the same pass
+			payloadSum = 0;
+			if (payloadLength > 0) {
+				payloadSum = Checksum.copy(payload, offset, rawData, headerLength, payloadLength, 0);
 			}
 
 			// the length of the TCP packet is the length of the payload plus
-			// the 20 byte TCP header (in Bytes)
-			packetLength = payloadLength + HEADER_SIZE;
+			// the TCP header with options (in Bytes)
+			packetLength = payloadLength + headerLength;
+			decodeHeader();
 		}
 
 		/**
-		 * Verify the checksum of a TCP packet and return the result (true if
-		 * OK, otherwise false).
+		 * Adds an option to the space reserved for options. The caller writes
+		 * the data of the option (absolute puts into rawData at the returned
+		 * index).
 		 * 
-		 * @return
+		 * @param kind
+		 * @param length
+		 *            the length of the option including the kind and length
+		 *            bytes
+		 * @return the index of the data of the option in rawData
 		 */
-		public boolean verifyChecksum() {
-			return calculateChecksum(true);
+		int addOption(int kind, int length) {
+			if (length < 2 || optionsEnd + length > headerLength) {
+				throw new InvalidParameterException("Option " + kind + " (" + length
+						+ " Bytes) does not fit into the reserved option space.");
+			}
+			rawData.put(optionsEnd, (byte) kind);
+			rawData.put(optionsEnd + 1, (byte) length);
+			optionsEnd += length;
+			return optionsEnd - length + 2;
 		}
 
 		/**
-		 * if onlyVerify is false, then the checksum and is calculated and set
-		 * it into the rawData of the TCP packet. Then true is returned. If
-		 * onlyVerify is true, then the checksum is only verified and the result
-		 * is returned (true if OK, otherwise false).
-		 * 
-		 * @param onlyVerify
-		 * @return
+		 * Adds a NOP option, which aligns the following option to 32 bits.
 		 */
-		private boolean calculateChecksum(boolean onlyVerify) {
-			if (!onlyVerify) {
-				// set checksum to 0
-				rawData.putShort(16, (short) 0);
-			}
-
-			byte[] buf = rawData.array();
-			int leftSum = 0;
-			int rightSum = 0;
-			int sum = 0;
-
-			// calculate the 16bit ones complement sum for the left 8 bit and
-			// the right 8 bit separately
-			// byte is signed, therefore add "& 0xFF" to get an unsigned value
-			for (int i = 0; i < packetLength - 1; i += 2) {
-				leftSum += buf[i] & 0xFF;
-				rightSum += buf[i + 1] & 0xFF;
-			}
-
-			// if packetLength contains odd bytes, add the last byte
-			if ((packetLength & 1) != 0) {
-				leftSum += buf[packetLength - 1] & 0xFF;
-			}
-
-			// form complete sum
-			sum = (leftSum << 8) + rightSum;
-
-			// ADD CHECKSUM OF PSEUDO HEADER
-			// add source/destination IP address
-
-			// following code is correct, if we would have the IP addresses in
-			// big-endian (but unfortunately we have it in little-endian format)
-			/*
-			 * sum += source_ip & 0xFFFF; sum += (source_ip >>> 16) & 0xFFFF;
-			 * sum += destination_ip & 0xFFFF; sum += (destination_ip >>> 16) &
-			 * 0xFFFF;
-			 */
-
-			// for little-endian we transform it to big-endian
-			sum += ((source_ip >>> 24) + ((source_ip & 0xFF0000) >>> 8)
-					+ ((source_ip & 0xFF00) >>> 8) + ((source_ip & 0xFF) << 8));
-			sum += ((destination_ip >>> 24)
-					+ ((destination_ip & 0xFF0000) >>> 8)
-					+ ((destination_ip & 0xFF00) >>> 8) + ((destination_ip & 0xFF) << 8));
-
-			// add TCP protocol nr 6
-			sum += IP.TCP_PROTOCOL;
-
-			// add packet length
-			sum += packetLength;
-
-			// add overflow
-			while ((sum >>> 16) != 0) {
-				sum = (sum & 0xFFFF) + (sum >>> 16);
+		void addNOPOption() {
+			if (optionsEnd >= headerLength) {
+				throw new InvalidParameterException("NOP option does not fit into the reserved option space.");
 			}
-			sum = ~((short) sum);
+			rawData.put(optionsEnd++, (byte) OPTION_NOP);
+		}
 
-			if (!onlyVerify) {
-				rawData.putShort(16, (short) sum);
-				return true;
+		/**
+		 * Looks for an option of the given kind. No memory is allocated, the
+		 * data of the option is read from rawData at the returned index.
+		 * 
+		 * @param kind
+		 * @return the index of the option (its kind byte) in rawData, or -1 if
+		 *         the packet has no (valid) option of this kind
+		 */
+		int findOption(int kind) {
+			int i = HEADER_SIZE;
+			while (i < headerLength) {
+				int optionKind = rawData.get(i) & 0xFF;
+				if (optionKind == OPTION_END)
+					return -1;
+				if (optionKind == OPTION_NOP) {
+					i++;
+					continue;
+				}
+				// all other options have a length byte, which includes the kind and length bytes
+				if (i + 1 >= headerLength)
+					return -1;
+				int length = rawData.get(i + 1) & 0xFF;
+				if (length < 2 || i + length > headerLength)
+					return -1;
+				if (optionKind == kind)
+					return i;
+				i += length;
 			}
-			return sum == 0;
+			return -1;
 		}
 
 		/**
-		 * Calculates the checksum and returns the whole TCP packet as byte
-		 * array
+		 * @param index
+		 *            the index of an option (see findOption)
+		 * @return the length of the option including the kind and length bytes
 		 */
-		public byte[] getByteArray() {
-
-			// recompute the checksum
-			this.calculateChecksum(false);
-
-			return rawData.array();
+		int getOptionLength(int index) {
+			return rawData.get(index + 1) & 0xFF;
 		}
 
-		public void getPayload(byte[] payload, int offset) {
-			int payloadLength = packetLength - HEADER_SIZE;
-			getPayload(payload, offset, 0, payloadLength);
-		}
-		
 		/**
-		 * Saves the payload of the package in the given variable 'payload'.
+		 * Adds the MSS option: the largest payload, which the sender of the
+		 * packet accepts.
 		 * 
-		 * @param payload
+		 * @param mss
+		 */
+		void addMSSOption(int mss) {
+			rawData.putShort(addOption(OPTION_MSS, MSS_OPTION_LENGTH), (short) mss);
+		}
+
+		/**
+		 * @return the maximum segment size announced in the MSS option, or -1
+		 *         if the packet has no MSS option
+		 */
+		public int getMSSOption() {
+			int index = findOption(OPTION_MSS);
+			if (index < 0 || getOptionLength(index) != MSS_OPTION_LENGTH)
+				return -1;
+			return rawData.getShort(index + 2) & 0xFFFF;
+		}
+
+		/**
+		 * Adds the window scale option (aligned by a NOP).
+		 * 
+		 * @param shift
+		 *            the shift count of the windows, which we advertise
+		 */
+		void addWindowScaleOption(int shift) {
+			addNOPOption();
+			rawData.put(addOption(OPTION_WINDOW_SCALE, WINDOW_SCALE_OPTION_LENGTH - 1), (byte) shift);
+		}
+
+		/**
+		 * @return the shift count announced in the window scale option (at
+		 *         most MAX_WINDOW_SCALE), or -1 if the packet has no window
+		 *         scale option
+		 */
+		public int getWindowScaleOption() {
+			int index = findOption(OPTION_WINDOW_SCALE);
+			if (index < 0 || getOptionLength(index) != WINDOW_SCALE_OPTION_LENGTH - 1)
+				return -1;
+			return Math.min(rawData.get(index + 2) & 0xFF, MAX_WINDOW_SCALE);
+		}
+
+		/**
+		 * Adds the SACK permitted option (aligned by two NOPs).
+		 */
+		void addSACKPermittedOption() {
+			addNOPOption();
+			addNOPOption();
+			addOption(OPTION_SACK_PERMITTED, 2);
+		}
+
+		/**
+		 * @return true if the packet has the SACK permitted option
+		 */
+		public boolean isSACKPermitted() {
+			return findOption(OPTION_SACK_PERMITTED) >= 0;
+		}
+
+		/**
+		 * Adds a SACK option (aligned by two NOPs).
+		 * 
+		 * @param edges
+		 *            the left and right edge of each block (the first SEQ
+		 *            number of the block and the SEQ number behind it)
+		 * @param blocks
+		 *            the amount of blocks
+		 */
+		void addSACKOption(long[] edges, int blocks) {
+			addNOPOption();
+			addNOPOption();
+			int index = addOption(OPTION_SACK, SACK_OPTION_LENGTH - 2 + SACK_BLOCK_LENGTH * blocks);
+			for (int i = 0; i < 2 * blocks; i++) {
+				rawData.putInt(index + 4 * i, (int) edges[i]);
+			}
+		}
+
+		/**
+		 * @return the amount of blocks in the SACK option, or 0 if the packet
+		 *         has no SACK option
+		 */
+		public int getSACKBlockCount() {
+			int index = findOption(OPTION_SACK);
+			if (index < 0)
+				return 0;
+			return (getOptionLength(index) - 2) / SACK_BLOCK_LENGTH;
+		}
+
+		/**
+		 * @param i
+		 *            the index of the edge: 2 * block for the left edge, 2 *
+		 *            block + 1 for the right edge
+		 * @return the edge of a block in the SACK option
+		 */
+		public long getSACKBlockEdge(int i) {
+			return rawData.getInt(findOption(OPTION_SACK) + 2 + 4 * i) & 0xFFFFFFFFL;
+		}
+
+		/**
+		 * @return the length of the TCP header including the options
+		 */
+		public int getHeaderLength() {
+			return headerLength;
+		}
+
+		/**
+		 * Verify the checksum of a TCP packet and return the result (true if
+		 * OK, otherwise false).
+		 * 
+		 * @return
+		 */
+		public boolean verifyChecksum() {
+			return calculateChecksum(true, Checksum.pseudoHeader(source_ip, destination_ip, IP.TCP_PROTOCOL));
+		}
+
+		/**
+		 * Verify the checksum with the given partial sum of the pseudo header
+		 * (see TcpControlBlock.getPseudoHeaderSum).
+		 * 
+		 * @param pseudoHeaderSum
+		 * @return true if OK, otherwise false
+		 */
+		boolean verifyChecksum(long pseudoHeaderSum) {
+			return calculateChecksum(true, pseudoHeaderSum);
+		}
+
+		/**
+		 * Verify the checksum and copy the payload behind the undelivered data
+		 * of the given buffer in the same pass, so the payload is read only
+		 * once. It is only appended by getPayload(RingBuffer), if the packet is
+		 * accepted in order. If the buffer has not enough free space, the
+		 * checksum is verified without copying.
+		 * 
+		 * @param pseudoHeaderSum
+		 * @param buffer
+		 * @return true if OK, otherwise false
+		 */
+		boolean verifyChecksum(long pseudoHeaderSum, RingBuffer buffer) {
+			int payloadLength = packetLength - headerLength;
+			if (payloadLength <= 0 || headerLength < HEADER_SIZE || payloadLength > buffer.free()) {
+				return calculateChecksum(true, pseudoHeaderSum);
+			}
+
+			long sum = Checksum.add(rawData, 0, headerLength, pseudoHeaderSum + packetLength);
+			sum = buffer.stage(rawData, headerLength, payloadLength, sum);
+			stagedBuffer = buffer;
+			return (~Checksum.fold(sum) & 0xFFFF) == 0;
+		}
+
+		/**
+		 * if onlyVerify is false, then the checksum and is calculated and set
+		 * it into the rawData of the TCP packet. Then true is returned. If
+		 * onlyVerify is true, then the checksum is only verified and the result
+		 * is returned (true if OK, otherwise false).
+		 * 
+		 * @param onlyVerify
+		 * @param pseudoHeaderSum
+		 *            the partial sum of the pseudo header without the length
+		 *            (see Checksum.pseudoHeader)
+		 * @return
+		 */
+		private boolean calculateChecksum(boolean onlyVerify, long pseudoHeaderSum) {
+			if (!onlyVerify) {
+				// set checksum to 0
+				rawData.putShort(16, (short) 0);
+			}
+
+			// the pseudo header: addresses, TCP protocol nr 6 and the packet length
+			long sum = pseudoHeaderSum + packetLength;
+			if (payloadSum >= 0) {
+				// the payload was added, when it was copied into the packet
+				sum = Checksum.add(rawData, 0, headerLength, sum + payloadSum);
+			}
+			else {
+				sum = Checksum.add(rawData, 0, packetLength, sum);
+			}
+			int checksum = ~Checksum.fold(sum) & 0xFFFF;
+
+			if (!onlyVerify) {
+				rawData.putShort(16, (short) checksum);
+				return true;
+			}
+			return checksum == 0;
+		}
+
+		/**
+		 * Calculates the checksum and returns the whole TCP packet as byte
+		 * array
+		 */
+		public byte[] getByteArray() {
+			return getByteArray(Checksum.pseudoHeader(source_ip, destination_ip, IP.TCP_PROTOCOL));
+		}
+
+		/**
+		 * Calculates the checksum with the given partial sum of the pseudo
+		 * header (see TcpControlBlock.getPseudoHeaderSum) and returns the
+		 * whole TCP packet as byte array
+		 * 
+		 * @param pseudoHeaderSum
+		 */
+		byte[] getByteArray(long pseudoHeaderSum) {
+
+			// recompute the checksum
+			this.calculateChecksum(false, pseudoHeaderSum);
+
+			return rawData.array();
+		}
+
+		public void getPayload(byte[] payload, int offset) {
+			int payloadLength = packetLength - headerLength;
+			getPayload(payload, offset, 0, payloadLength);
+		}
+		
+		/**
+		 * Saves the payload of the package in the given variable 'payload'.
+		 * 
+		 * @param payload
 		 */
 		public void getPayload(byte[] payload, int offsetDestination, int offsetSource, int payloadLength) {
-    		for (int i = 0; i < payloadLength; i++) {
-   				payload[offsetDestination+i] = rawData.get(HEADER_SIZE+offsetSource+i);
-    		}
+			System.arraycopy(rawData.array(), rawData.arrayOffset() + headerLength + offsetSource,
+					payload, offsetDestination, payloadLength);
     	}
 
+		/**
+		 * Appends the payload of the package to the given buffer. If the
+		 * payload was already copied there, while the checksum was verified,
+		 * it is only committed.
+		 * 
+		 * @param buffer
+		 */
+		void getPayload(RingBuffer buffer) {
+			int payloadLength = packetLength - headerLength;
+			if (stagedBuffer == buffer && buffer.commit(payloadLength)) {
+				stagedBuffer = null;
+				return;
+			}
+			buffer.write(rawData.array(), rawData.arrayOffset() + headerLength, payloadLength);
+		}
+
 		/**
 		 * @return the source port of the TCP packet
 		 */
 		public int getSourcePort() {
-			return (rawData.getInt(0) >>> 16);
+			return source_port;
 		}
 
 		/**
 		 * @return the destination port of the TCP packet
 		 */
 		public int getDestinationPort() {
-			return (rawData.getInt(0) & 0xFFFF);
+			return destination_port;
 		}
 
 		/**
 		 * @return the SEQ number of the TCP packet
 		 */
 		public long getSEQNumber() {
-			return (rawData.getLong(4) >>> 32);
+			return seq_nr;
 		}
 
 		/**
 		 * @return the ACK number of the TCP packet
 		 */
 		public long getACKNumber() {
-			return (rawData.getLong(8) >>> 32);
+			return ack_nr;
 		}
 
 		/**
 		 * @return the length of the payload in Byte.
 		 */
 		public long getPayloadLength() {
-			return packetLength - HEADER_SIZE;
+			return packetLength - headerLength;
+		}
+
+		/**
+		 * @return the window size advertised by the sender of the TCP packet
+		 *         (the value of the window field, which is not scaled)
+		 */
+		public int getWindowSize() {
+			return window;
+		}
+
+		/**
+		 * Sets the advertised window size (the checksum is recomputed when the
+		 * packet is converted to a byte array).
+		 *
+		 * @param windowSize
+		 */
+		void setWindow(int windowSize) {
+			rawData.putShort(14, (short) windowSize);
+			window = windowSize & 0xFFFF;
+		}
+
+		/**
+		 * Sets the ACK number (the checksum is recomputed when the packet is
+		 * converted to a byte array).
+		 *
+		 * @param ack_nr
+		 */
+		void setACKNumber(long ack_nr) {
+			rawData.putInt(8, (int) ack_nr);
+			this.ack_nr = ack_nr & 0xFFFFFFFFL;
 		}
 
 		/**
@@ -994,7 +2171,7 @@ public class TCP {
 		 * Get the value of the PSH flag
 		 */
 		public boolean isPSH_Flag() {
-			return (getFlags() & 3) == 1;
+			return (getFlags() & 8) != 0;
 		}
 
 		/**
@@ -1008,7 +2185,7 @@ public class TCP {
 		 * Get the flags from the TCP packet
 		 * */
 		private byte getFlags() {
-			return rawData.get(13);
+			return flags;
 		}
 
 		/**
@@ -1032,6 +2209,7 @@ public class TCP {
 
 			// write all flags back to the raw data
 			rawData.put(13, flags);
+			this.flags = flags;
 		}
 
 		/**
@@ -1041,6 +2219,14 @@ public class TCP {
 			return (getFlags() & 7) == 2;
 		}
 
+		/**
+		 * Check, whether this is a plain ACK or data packet (ACK=1, URG=0,
+		 * RST=0, SYN=0, FIN=0, the PSH flag does not matter)
+		 */
+		boolean isPlainACK() {
+			return (getFlags() & 0x37) == 0x10;
+		}
+
 		/**
 		 * This method is only used for testing purposes
 		 * 
@@ -1048,7 +2234,8 @@ public class TCP {
 		 */
 		public void setWindowSize(short windowSize) {
 			rawData.putShort(14, windowSize);
-			this.calculateChecksum(false);
+			window = windowSize & 0xFFFF;
+			this.calculateChecksum(false, Checksum.pseudoHeader(source_ip, destination_ip, IP.TCP_PROTOCOL));
 		}
 
 	}
@@ -1061,6 +2248,23 @@ public class TCP {
 	 */
 	public class TcpControlBlock {
 
+		/**
+		 * The default size of the buffer for received, but not yet delivered
+		 * data. The free space in it is the window, which we advertise (up to 8
+		 * packets, which still fits into the 16 bit window field). The other
+		 * side needs more than 4 packets in flight to get three duplicate ACKs
+		 * for a lost packet (see detectLoss), since every second packet is
+		 * acknowledged.
+		 */
+		static final int RECEIVE_BUFFER_SIZE = 8 * TcpPacket.MAX_PAYLOAD_LENGTH;
+
+		/**
+		 * The maximum size of the buffer for received data (see
+		 * setReceiveBufferSize). Windows above 64 KB are advertised with the
+		 * window scale option.
+		 */
+		static final int MAX_RECEIVE_BUFFER_SIZE = 16 * 1024 * 1024;
+
 		/** Our IP address. */
 		int tcb_local_ip_addr;
 
@@ -1073,6 +2277,15 @@ public class TCP {
 		/** Their port number. */
 		int tcb_remote_port;
 
+		/** The partial checksum of the pseudo header (see getPseudoHeaderSum). */
+		long tcb_pseudo_header_sum = Checksum.pseudoHeader(0, 0, IP.TCP_PROTOCOL);
+
+		/** Our IP address, of which tcb_pseudo_header_sum was computed. */
+		int tcb_pseudo_header_local_ip;
+
+		/** Their IP address, of which tcb_pseudo_header_sum was computed. */
+		int tcb_pseudo_header_remote_ip;
+
 		/** Previously send packet (stored in case resend is needed) */
 		TcpPacket previous_tcp;
 		
@@ -1087,24 +2300,177 @@ public class TCP {
 		 */
 		long tcb_local_expected_ack;
 
+		/**
+		 * The oldest SEQ number, which was sent, but not acknowledged by the
+		 * other side yet.
+		 */
+		long tcb_local_oldest_unacked_SEQ_num;
+
+		/**
+		 * The sent, but not yet acknowledged TCP packets (ordered by their SEQ
+		 * numbers). They are kept in case they have to be resent.
+		 */
+		ArrayDeque<TcpPacket> tcb_unacked_packets = new ArrayDeque<TcpPacket>();
+
+		/**
+		 * Buffers for data packets, which can be reused, because their packets
+		 * were acknowledged. Each buffer holds a packet of maximum size (at
+		 * most MAX_FREE_PACKET_BUFFERS are kept).
+		 */
+		ArrayDeque<ByteBuffer> tcb_free_packet_buffers = new ArrayDeque<ByteBuffer>();
+
+		/**
+		 * The wrapper of the array, from which the last data packet was
+		 * created (see wrapPayload). The packets of a connection are mostly
+		 * created from the same array, so it is reused.
+		 */
+		ByteBuffer tcb_payload_data;
+
+		/**
+		 * The data of small writes, which is collected until it is sent as one
+		 * packet (see isNagleDelaying).
+		 */
+		byte[] tcb_send_buffer = new byte[TcpPacket.MAX_PAYLOAD_LENGTH];
+
+		/** The amount of bytes in tcb_send_buffer. */
+		int tcb_send_buffer_length = 0;
+
+		/** True, if small writes are not delayed (see isNagleDelaying). */
+		boolean tcb_no_delay = false;
+
+		/** The buffer, which is reused for the ACK packets created by createACKPacket. */
+		ByteBuffer tcb_ack_packet_buffer = ByteBuffer.allocate(TcpPacket.MAX_HEADER_SIZE);
+
+		/**
+		 * The largest payload of the packets we send. It is announced by the
+		 * other side in the MSS option of its SYN packet.
+		 */
+		int tcb_send_mss = TcpPacket.MAX_PAYLOAD_LENGTH;
+
+		/**
+		 * The shift count of the windows, which we advertise (the window field
+		 * holds the window divided by 2^shift). It is 0 unless both sides sent
+		 * the window scale option.
+		 */
+		int tcb_receive_window_shift = 0;
+
+		/** The shift count of the windows, which the other side advertises. */
+		int tcb_send_window_shift = 0;
+
+		/** True, if the other side sent the window scale option in its SYN packet. */
+		boolean tcb_window_scaling = false;
+
+		/** True, if both sides announced, that they accept SACK options. */
+		boolean tcb_sack_permitted = false;
+
+		/** The edges of the SACK blocks of the next ACK packet (see fillSACKBlocks). */
+		long[] tcb_sack_blocks = new long[2 * TcpPacket.MAX_SACK_BLOCKS];
+
+		/** The SEQ number of the packet, which arrived out of order most recently. */
+		long tcb_last_out_of_order_SEQ_num;
+
+		/** The IP packet, which is reused to send TCP packets. */
+		IP.Packet tcb_send_IP_packet = new IP.Packet();
+
+		/**
+		 * The window size advertised by the other side, which is the amount of
+		 * bytes we may send without waiting for an ACK.
+		 */
+		int tcb_remote_window = TcpPacket.MAX_PAYLOAD_LENGTH;
+
+		/**
+		 * The smoothed round trip time (in microseconds), which is 0 as long
+		 * as no round trip time was measured.
+		 */
+		long tcb_srtt = 0;
+
+		/** The variation of the round trip time (in microseconds). */
+		long tcb_rttvar = 0;
+
+		/** The current retransmission timeout (in microseconds). */
+		long tcb_rto = INITIAL_RTO * 1000L;
+
+		/**
+		 * True, while the round trip time of a sent packet is measured (only
+		 * one packet at a time is timed and never a resent one).
+		 */
+		boolean tcb_rtt_measuring = false;
+
+		/** The ACK number, which acknowledges the timed packet. */
+		long tcb_rtt_SEQ_num;
+
+		/** The time (System.nanoTime) at which the timed packet was sent. */
+		long tcb_rtt_start_time;
+
+		/** The amount of bytes, which the other side acknowledged, since the connection opened. */
+		long tcb_delivered;
+
+		/** The time (System.nanoTime) of the last ACK, which acknowledged new data. */
+		long tcb_delivered_time;
+
+		/** The time (System.nanoTime), at which the next packet may be sent (see getPacingDelay). */
+		long tcb_next_departure_time;
+
+		/**
+		 * The time (System.nanoTime) at which the oldest unacknowledged packet
+		 * has to be resent.
+		 */
+		long tcb_retransmission_deadline;
+
+		/** The amount of retransmission timeouts in a row, in which none of the sent packets was acknowledged. */
+		int tcb_timeouts_in_row = 0;
+
+		/** The amount of duplicate ACKs in a row, which were received for the oldest unacknowledged packet. */
+		int tcb_duplicate_acks = 0;
+
+		/** True, while we resend the lost packets reported by duplicate ACKs (fast recovery). */
+		boolean tcb_fast_recovery = false;
+
+		/** The SEQ number, which was sent last, when fast recovery started. The recovery ends, when it is acknowledged. */
+		long tcb_recovery_SEQ_num;
+
+		/** True, if the oldest unacknowledged packet has to be resent right away (set by detectLoss, see nextRetransmission). */
+		boolean tcb_fast_retransmit = false;
+
+		/**
+		 * Limits the amount of unacknowledged data together with the window of
+		 * the other side (see isInsideSendWindow).
+		 */
+		CongestionControl tcb_congestion_control = new NewRenoCongestionControl();
+
+		/**
+		 * The window size, which we advertise to the other side. It is the
+		 * free space of the tcb_receive_buffer.
+		 */
+		int tcb_local_window = RECEIVE_BUFFER_SIZE;
+
 		/** The next SEQ number, which we expect from the other side. */
 		long tcb_remote_next_expected_SEQ_num;
 
 		/**
-		 * The last SEQ number, which we expect from the other side. This is
-		 * needed to verify the accepted receiving packet length.
+		 * The last SEQ number, which we expect from the other side (the end of
+		 * the window we advertised). This is needed to verify the accepted
+		 * receiving packet length.
 		 */
 		long tcb_remote_last_expected_SEQ_num = TcpPacket.MAX_PAYLOAD_LENGTH;
 
-		/** Static buffer for recv data. */
-		byte tcb_data[];
-
 		/** The undelivered data. 
-		 * This array is filled when read-method delivers only a part of the received packet (due to the parameter maxlen) */
-		byte[] tcb_undelivered_data = new byte[TCP.TcpPacket.MAX_PAYLOAD_LENGTH];
+		 * This buffer is filled with the received packets (in the order of their SEQ numbers) and emptied by the read-method */
+		RingBuffer tcb_receive_buffer = new RingBuffer(RECEIVE_BUFFER_SIZE);
+
+		/**
+		 * The payload of packets, which arrived out of order (their SEQ number
+		 * is inside the window, but behind a missing packet), by their SEQ
+		 * number. They are moved to the undelivered data as soon as the
+		 * missing packet arrives.
+		 */
+		HashMap<Long, byte[]> tcb_out_of_order_data = new HashMap<Long, byte[]>();
+
+		/** The amount of received bytes, which were not acknowledged yet (see delayACK). */
+		int tcb_unacknowledged_bytes = 0;
 
-		/** The amount of undelivered data bytes. */
-		int tcb_undelivered_data_len = 0;
+		/** The time (in ms), when the received data has to be acknowledged, or 0 if no ACK is delayed. */
+		long tcb_delayed_ack_deadline = 0;
 
 		/** The current TCP connection state. */
 		ConnectionState tcb_state;
@@ -1120,6 +2486,12 @@ public class TCP {
 		 * is only needed for testing purposes.
 		 */
 		TcpPacket lastReceivedTcpPacket = null;
+
+		/**
+		 * The packet, which is reused for the next received packet (see
+		 * verifyReceivedPacket).
+		 */
+		TcpPacket tcb_received_packet = new TcpPacket();
 		
 		/**
 		 * Contains the last received (and possibly lost) IP packet. It is needed
@@ -1131,12 +2503,15 @@ public class TCP {
 		 * unexpected (bad SEQ/ACK) packet or a corrupted one
 		 *  */
 		PacketVerifyFailure verifyReceivedFailure = PacketVerifyFailure.F_UNDEFINED;
+
+		/** The metrics of the current connection (see getMetrics). */
+		TcpMetrics tcb_metrics = new TcpMetrics(ConnectionState.S_CLOSED);
 		
 		/**
 		 * Constructor called by client
 		 */
 		public TcpControlBlock() {
-			tcb_state = ConnectionState.S_CLOSED;
+			setState(ConnectionState.S_CLOSED);
 			tcb_communication_side = "CLIENT";
 
 			// SEQ and ACK are set to default values
@@ -1172,7 +2547,7 @@ public class TCP {
 			tcb_local_expected_ack = 0;
 
 			// set the connection status to LISTEN for the server
-			tcb_state = ConnectionState.S_LISTEN;
+			setState(ConnectionState.S_LISTEN);
 		}
 
 		/**
@@ -1201,40 +2576,46 @@ public class TCP {
 			// this would also be detected by verifyChecksum of the TcpPacket,
 			// but here we produce a better error message
 			if (ipPacket.destination != tcb_local_ip_addr) {
-				Logging.getInstance().LogTcpPacketError(
-						this,
-						"The received IP packet had the wrong destination IP address "
-								+ "(expectedIP='"
-								+ IpAddress.htoa(tcb_local_ip_addr) + "', "
-								+ "packet-destination-address='"
-								+ IpAddress.htoa(ipPacket.destination) + "')");
-				verifyReceivedFailure = PacketVerifyFailure.F_WRONG_IP;
+				if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+					Logging.getInstance().LogTcpPacketError(
+							this,
+							"The received IP packet had the wrong destination IP address "
+									+ "(expectedIP='"
+									+ IpAddress.htoa(tcb_local_ip_addr) + "', "
+									+ "packet-destination-address='"
+									+ IpAddress.htoa(ipPacket.destination) + "')");
+				rejectPacket(PacketVerifyFailure.F_WRONG_IP);
 				return null;
 			}
 			if (ipPacket.source != tcb_remote_ip_addr) {
-				Logging.getInstance().LogTcpPacketError(
-						this,
-						"The received IP packet had the wrong source IP address "
-								+ "(expectedIP='"
-								+ IpAddress.htoa(tcb_remote_ip_addr) + "', "
-								+ "packet-source-address='"
-								+ IpAddress.htoa(ipPacket.source) + "')");
-				verifyReceivedFailure = PacketVerifyFailure.F_WRONG_IP;
+				if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+					Logging.getInstance().LogTcpPacketError(
+							this,
+							"The received IP packet had the wrong source IP address "
+									+ "(expectedIP='"
+									+ IpAddress.htoa(tcb_remote_ip_addr) + "', "
+									+ "packet-source-address='"
+									+ IpAddress.htoa(ipPacket.source) + "')");
+				rejectPacket(PacketVerifyFailure.F_WRONG_IP);
 				return null;
 			}
 
 			// verify protocol version
 			if (ipPacket.protocol != 4) {	// "ipPacket.protocol != IP.Packet.IP_PROTOCOL_V4" threw a build error at the assignment submission
-				Logging.getInstance().LogTcpPacketError(
-						this,
-						"The received IP packed had the wrong protocol version (expected='4', actual='"
-								+ ipPacket.protocol + "').");
-				verifyReceivedFailure = PacketVerifyFailure.F_WRONG_PROTO;
+				if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+					Logging.getInstance().LogTcpPacketError(
+							this,
+							"The received IP packed had the wrong protocol version (expected='4', actual='"
+									+ ipPacket.protocol + "').");
+				rejectPacket(PacketVerifyFailure.F_WRONG_PROTO);
 				return null;
 			}
 
-			TcpPacket tcpPacket = new TcpPacket(ipPacket.source,
-					ipPacket.destination, ipPacket.data, ipPacket.length);
+			// decode the header once into the reused packet
+			TcpPacket tcpPacket = tcb_received_packet;
+			tcpPacket.wrap(ipPacket.source, ipPacket.destination, ipPacket.data, ipPacket.length);
+			tcb_metrics.segmentsReceived++;
+			tcb_metrics.bytesReceived += Math.max(tcpPacket.getPayloadLength(), 0);
 
 			// set the remote_address and the remote port
 			// (this is needed when accepting a new connection at the server,
@@ -1246,154 +2627,993 @@ public class TCP {
 
 			// verify ports
 			if (tcpPacket.getSourcePort() != tcb_remote_port) {
-				Logging.getInstance().LogTcpPacketError(this, "The received TCP packet had the wrong source port. Expected='" +tcb_remote_port+ "', actual='" + tcpPacket.getSourcePort() + "'!"); 
-				verifyReceivedFailure = PacketVerifyFailure.F_WRONG_PORT;
+				if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+					Logging.getInstance().LogTcpPacketError(this, "The received TCP packet had the wrong source port. Expected='" +tcb_remote_port+ "', actual='" + tcpPacket.getSourcePort() + "'!"); 
+				rejectPacket(PacketVerifyFailure.F_WRONG_PORT);
+				return null;
 			}
 			if (tcpPacket.getDestinationPort() != tcb_local_port) {
-				Logging.getInstance().LogTcpPacketError(this, "The received TCP packet had the wrong destination port. Expected='" +tcb_local_port+ "', actual='" + tcpPacket.getDestinationPort() + "'!"); 
-				verifyReceivedFailure = PacketVerifyFailure.F_WRONG_PORT;
+				if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+					Logging.getInstance().LogTcpPacketError(this, "The received TCP packet had the wrong destination port. Expected='" +tcb_local_port+ "', actual='" + tcpPacket.getDestinationPort() + "'!"); 
+				rejectPacket(PacketVerifyFailure.F_WRONG_PORT);
+				return null;
 			}
 			
 			// Verify checksum
-			if (!tcpPacket.verifyChecksum()) {
+			if (!tcpPacket.verifyChecksum(getPseudoHeaderSum(), tcb_receive_buffer)) {
 				Logging.getInstance().LogTcpPacketError(this, "The received TCP packet had the wrong checksum!");
-				verifyReceivedFailure = PacketVerifyFailure.F_CORRUPT;
+				rejectPacket(PacketVerifyFailure.F_CORRUPT);
 				return null;
 			}
 
+			// Verify the data offset (the header length including the options)
+			if (tcpPacket.getHeaderLength() < TcpPacket.HEADER_SIZE
+					|| tcpPacket.getHeaderLength() > tcpPacket.packetLength) {
+				if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+					Logging.getInstance().LogTcpPacketError(this, "The received TCP packet had the wrong data offset (header length='" + tcpPacket.getHeaderLength() + "')!");
+				rejectPacket(PacketVerifyFailure.F_CORRUPT);
+				return null;
+			}
+
+			// a predicted packet has the next expected SEQ number and an
+			// acceptable ACK number, it needs no further checks
+			tcpPacket.predicted = predictSegment(tcpPacket);
+
 			// VERIFY SEQ/ACK only of we are not in CLOSED or LISTEN state
-			if (tcb_state != ConnectionState.S_CLOSED
+			if (!tcpPacket.predicted
+					&& tcb_state != ConnectionState.S_CLOSED
 					&& tcb_state != ConnectionState.S_LISTEN) {
 
 				// dont verify SEQ number during connection setup
 				if (tcb_state != ConnectionState.S_SYN_SENT) {
-					// Verify the SEQ number, which should be the
-					// tcb_remote_next_expected_SEQ_num
-					if (tcb_remote_next_expected_SEQ_num != tcpPacket.getSEQNumber()) {
-						Logging.getInstance().LogTcpPacketError(this,
-								"Wrong SEQ number. Expected was '"
-										+ tcb_remote_next_expected_SEQ_num
-										+ "', but was '"
-										+ tcpPacket.getSEQNumber() + "'!");
-						verifyReceivedFailure = PacketVerifyFailure.F_WRONG_SEQ;
+					// Verify the SEQ number, which should be inside the window,
+					// which starts at the tcb_remote_next_expected_SEQ_num (data
+					// packets may arrive out of order, SYN/FIN packets not, ACKs
+					// without data may also be at the end of a full window)
+					long seqOffset = ConnectionUtils.getSequenceDistance(tcb_remote_next_expected_SEQ_num, tcpPacket.getSEQNumber());
+					long window = ConnectionUtils.getSequenceDistance(tcb_remote_next_expected_SEQ_num, tcb_remote_last_expected_SEQ_num);
+					long acceptable = tcpPacket.getPayloadLength() == 0 ? window + 1 : Math.max(window, 1);
+					if (seqOffset >= acceptable
+							|| (seqOffset != 0 && (tcpPacket.isSYN_Flag() || tcpPacket.isFIN_Flag()))) {
+						if (Logging.getInstance().isLoggable(Logging.Level.INFO))
+							Logging.getInstance().LogTcpPacketInformation(this,
+									"Wrong SEQ number. Expected was '"
+											+ tcb_remote_next_expected_SEQ_num
+											+ "' (window " + window + "), but was '"
+											+ tcpPacket.getSEQNumber() + "'!");
+						rejectPacket(PacketVerifyFailure.F_WRONG_SEQ);
 						return null;
 					}
 
 					// Verify that the length of the packet is OK, that means
-					// the tcb_remote_last_expected_SEQ_num <= SEQnumber +
-					// payloadLength
-					if (tcb_remote_last_expected_SEQ_num < tcpPacket
-							.getSEQNumber() + tcpPacket.getPayloadLength()) {
-						Logging.getInstance().LogTcpPacketError(
-								this,
-								"Packet too long. Expected last SEQ num should be <= '"
-										+ tcb_remote_last_expected_SEQ_num
-										+ "', but was '"
-										+ tcpPacket.getSEQNumber()
-										+ tcpPacket.getPayloadLength() + "'!");
-						verifyReceivedFailure = PacketVerifyFailure.F_WRONG_SEQ;
+					// SEQnumber + payloadLength <= the
+					// tcb_remote_last_expected_SEQ_num
+					if (seqOffset + tcpPacket.getPayloadLength() > window) {
+						if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+							Logging.getInstance().LogTcpPacketError(
+									this,
+									"Packet too long. Expected last SEQ num should be <= '"
+											+ tcb_remote_last_expected_SEQ_num
+											+ "', but was '"
+											+ (tcpPacket.getSEQNumber()
+											+ tcpPacket.getPayloadLength()) + "'!");
+						rejectPacket(PacketVerifyFailure.F_WRONG_SEQ);
 						return null;
 					}
 				}
 
 				// if the received packet is an ACK packet, we have to verify
-				// the tcb_local_expected_ack
+				// that the ACK number is between the oldest unacknowledged
+				// SEQ number and the tcb_local_expected_ack
 				if (tcpPacket.isACK_Flag()
-						&& tcb_local_expected_ack != tcpPacket.getACKNumber()) {
-					Logging.getInstance().LogTcpPacketError(
-							this,
-							"Wrong ACK number. Expected was '"
-									+ tcb_local_expected_ack + "', but was '"
-									+ tcpPacket.getACKNumber() + "'!");
-					verifyReceivedFailure = PacketVerifyFailure.F_WRONG_ACK;
+						&& !isACKAcceptable(tcpPacket.getACKNumber())) {
+					if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+						Logging.getInstance().LogTcpPacketError(
+								this,
+								"Wrong ACK number. Expected was between '"
+										+ tcb_local_oldest_unacked_SEQ_num + "' and '"
+										+ tcb_local_expected_ack + "', but was '"
+										+ tcpPacket.getACKNumber() + "'!");
+					rejectPacket(PacketVerifyFailure.F_WRONG_ACK);
 					return null;
 				}
 			}
 
-			lastReceivedTcpPacket = tcpPacket;
-			return tcpPacket;
+			// the verified packet stays valid, until the next packet was
+			// verified as well: the previous one is reused for it
+			tcb_received_packet = lastReceivedTcpPacket != null ? lastReceivedTcpPacket : new TcpPacket();
+			lastReceivedTcpPacket = tcpPacket;
+			return tcpPacket;
+		}
+
+		/**
+		 * Records the reason, why verifyReceivedPacket rejected the received
+		 * packet.
+		 * 
+		 * @param failure
+		 */
+		private void rejectPacket(PacketVerifyFailure failure) {
+			verifyReceivedFailure = failure;
+			tcb_metrics.verifyFailures[failure.ordinal()]++;
+		}
+
+		/**
+		 * Changes the state of the connection and counts the time, which it
+		 * spent in the previous state. The metrics of a closed connection are
+		 * kept, until it is connected again (see Socket.connect).
+		 * 
+		 * @param state
+		 */
+		void setState(ConnectionState state) {
+			tcb_state = state;
+			tcb_metrics.enterState(state);
+		}
+
+		/**
+		 * Counts a sent IP packet in the metrics of the connection.
+		 * 
+		 * @param packet
+		 */
+		void countSentPacket(IP.Packet packet) {
+			int headerLength = ((packet.data[12] >> 4) & 0xF) * 4;
+			tcb_metrics.segmentsSent++;
+			tcb_metrics.bytesSent += Math.max(packet.length - headerLength, 0);
+		}
+
+		/**
+		 * @return a snapshot of the metrics of the current (or the last closed)
+		 *         connection
+		 */
+		TcpMetrics getMetrics() {
+			TcpMetrics metrics = tcb_metrics.snapshot();
+			if (!tcb_metrics.retired) {
+				metrics.rtt = tcb_srtt;
+				metrics.rto = tcb_rto;
+			}
+			return metrics;
+		}
+
+		/**
+		 * The method is called after a received TcpPacket was verified
+		 * successfully. The method changes the state of the connection and the
+		 * SEQ and/or ACK numbers of the TcpControlblock, depending on the
+		 * current state and the flags in the received TCP packet.
+		 * 
+		 * @param tcpPacket
+		 * @return true if the packet was an expected packet, otherwise false.
+		 */
+		public boolean acceptReceivedTcpPacket(TcpPacket tcpPacket) {
+			if (tcpPacket.predicted) {
+				processPredictedSegment(tcpPacket);
+				return true;
+			}
+
+			boolean receivedPacketWasExpected = false;
+			switch (tcb_state) {
+			case S_CLOSED:
+				Logging.getInstance().LogConnectionError(this, "Package was received while TCP was in CLOSED state!");
+				break;
+
+			case S_SYN_SENT:
+				if (tcpPacket.isSYN_Flag() && tcpPacket.isACK_Flag() && !tcpPacket.isFIN_Flag()) {
+					processSYNOptions(tcpPacket);
+					receivedPacketWasExpected = true;
+				} else {
+					if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+						Logging.getInstance().LogTcpPacketError(this, "Expected SYN/ACK packet, but actual package had SYN=" + tcpPacket.isSYN_Flag() + ", ACK=" + tcpPacket.isACK_Flag() + ", FIN=" + tcpPacket.isFIN_Flag());
+				}
+				break;
+
+			case S_LISTEN:
+				if (tcpPacket.isSYN_Flag() && !tcpPacket.isACK_Flag() && !tcpPacket.isFIN_Flag()) {
+					// If we were in LISTEN state and received a valid SYN package, we go to SYN_RCVD state
+					setState(ConnectionState.S_SYN_RCVD);
+					processSYNOptions(tcpPacket);
+					receivedPacketWasExpected = true;
+				} else {
+					if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+						Logging.getInstance().LogTcpPacketError(this, "Expected SYN packet, but actual package had SYN=" + tcpPacket.isSYN_Flag() + ", ACK=" + tcpPacket.isACK_Flag() + ", FIN=" + tcpPacket.isFIN_Flag());
+				}
+				break;
+
+			case S_SYN_RCVD:
+				if (!tcpPacket.isSYN_Flag() && tcpPacket.isACK_Flag() && !tcpPacket.isFIN_Flag()) {
+					// If we were in SYN_RCVD state and received a valid ACK
+					// package, we go to ESTABLISHED state
+					setState(ConnectionState.S_ESTABLISHED);
+					receivedPacketWasExpected = true;
+				}
+				// active close
+				else if (tcpPacket.isFIN_Flag()) {
+					// If we were in SYN_RCVD state and received a FIN package,
+					// we go to FIN_WAIT_1 state
+					setState(ConnectionState.S_FIN_WAIT_1);
+
+					receivedPacketWasExpected = true;
+				} else {
+					if (Logging.getInstance().isLoggable(Logging.Level.WARNING))
+						Logging.getInstance().LogTcpPacketError(this, "Expected ACK packet, but actual package had SYN=" + tcpPacket.isSYN_Flag() + ", ACK=" + tcpPacket.isACK_Flag() + ", FIN=" + tcpPacket.isFIN_Flag());
+				}
+				break;
+
+			case S_ESTABLISHED:
+				receivedPacketWasExpected = true;
+				break;
+			default:
+				receivedPacketWasExpected = true;
+				break;
+			}
+			
+
+			if (receivedPacketWasExpected) {
+				if (tcpPacket.isACK_Flag()) {
+					// update the scoreboard and count duplicate ACKs before the ACK moves the window
+					if (tcb_sack_permitted)
+						processSACK(tcpPacket);
+					detectLoss(tcpPacket);
+					acknowledgePackets(tcpPacket.getACKNumber());
+				}
+				tcb_remote_window = tcpPacket.isSYN_Flag() ? tcpPacket.getWindowSize()
+						: tcpPacket.getWindowSize() << tcb_send_window_shift;
+				if (tcpPacket.isSYN_Flag() || tcpPacket.isFIN_Flag()) {
+					// increase the sequence-numbers by 1
+					tcb_remote_next_expected_SEQ_num = ConnectionUtils.getNextSequenceNumber(tcpPacket.getSEQNumber(), 1);
+					updateReceiveWindow();
+				}
+				else {
+					receiveData(tcpPacket);
+				}
+			}
+			return receivedPacketWasExpected;
+
+		}
+
+		/**
+		 * Header prediction (Van Jacobson, RFC 1323 appendix): during a bulk
+		 * transfer in ESTABLISHED almost every packet is either the next
+		 * expected data, which acknowledges nothing new, or an ACK of new data
+		 * without payload. Both leave the window, the recovery and the buffered
+		 * out-of-order data unchanged, so they skip the SEQ/ACK checks and the
+		 * state machine (see processPredictedSegment). Packets with options
+		 * (SACK blocks) are not predicted.
+		 * 
+		 * @param tcpPacket
+		 *            a received packet with a valid checksum
+		 * @return true if the packet matches the prediction
+		 */
+		boolean predictSegment(TcpPacket tcpPacket) {
+			if (tcb_state != ConnectionState.S_ESTABLISHED
+					|| !tcpPacket.isPlainACK()
+					|| tcpPacket.headerLength != TcpPacket.HEADER_SIZE
+					|| tcpPacket.seq_nr != tcb_remote_next_expected_SEQ_num
+					|| (tcpPacket.window << tcb_send_window_shift) != tcb_remote_window
+					|| tcb_fast_recovery
+					|| !tcb_out_of_order_data.isEmpty())
+				return false;
+
+			if (tcpPacket.packetLength == TcpPacket.HEADER_SIZE) {
+				// an ACK of new data (a duplicate ACK counts for detectLoss)
+				return tcpPacket.ack_nr != tcb_local_oldest_unacked_SEQ_num
+						&& isACKAcceptable(tcpPacket.ack_nr);
+			}
+			// the next expected data, which verifyReceivedPacket already
+			// copied into the free space of the receive buffer (our window)
+			return tcpPacket.ack_nr == tcb_local_oldest_unacked_SEQ_num
+					&& tcpPacket.stagedBuffer == tcb_receive_buffer;
+		}
+
+		/**
+		 * Applies a packet, which matched the header prediction (see
+		 * predictSegment), with the same result as acceptReceivedTcpPacket.
+		 * 
+		 * @param tcpPacket
+		 */
+		void processPredictedSegment(TcpPacket tcpPacket) {
+			int payloadLength = tcpPacket.packetLength - tcpPacket.headerLength;
+			if (payloadLength == 0) {
+				tcb_duplicate_acks = 0;
+				acknowledgePackets(tcpPacket.ack_nr);
+				return;
+			}
+			tcpPacket.getPayload(tcb_receive_buffer);
+			tcb_remote_next_expected_SEQ_num = ConnectionUtils.getNextSequenceNumber(tcpPacket.seq_nr, payloadLength);
+			updateReceiveWindow();
+		}
+
+		/**
+		 * Stores the payload of a received packet. If the packet has the next
+		 * expected SEQ number, its payload is appended to the undelivered data,
+		 * together with all buffered packets, which follow it without a gap.
+		 * A packet, which arrived out of order, is buffered until the missing
+		 * data arrives.
+		 * 
+		 * @param tcpPacket
+		 */
+		void receiveData(TcpPacket tcpPacket) {
+			int payloadLength = (int) tcpPacket.getPayloadLength();
+			if (payloadLength == 0)
+				return;
+
+			long seq = tcpPacket.getSEQNumber();
+			if (seq != tcb_remote_next_expected_SEQ_num) {
+				if (!tcb_out_of_order_data.containsKey(seq)) {
+					byte[] payload = new byte[payloadLength];
+					tcpPacket.getPayload(payload, 0);
+					tcb_out_of_order_data.put(seq, payload);
+				}
+				tcb_last_out_of_order_SEQ_num = seq;
+				return;
+			}
+
+			tcpPacket.getPayload(tcb_receive_buffer);
+			tcb_remote_next_expected_SEQ_num = ConnectionUtils.getNextSequenceNumber(seq, payloadLength);
+
+			if (!tcb_out_of_order_data.isEmpty()) {
+				// deliver the buffered packets, which follow without a gap
+				byte[] payload;
+				while ((payload = tcb_out_of_order_data.remove(tcb_remote_next_expected_SEQ_num)) != null) {
+					tcb_receive_buffer.write(payload, 0, payload.length);
+					tcb_remote_next_expected_SEQ_num = ConnectionUtils.getNextSequenceNumber(tcb_remote_next_expected_SEQ_num, payload.length);
+				}
+
+				// drop buffered packets, which are now behind the next expected SEQ number
+				Iterator<Long> it = tcb_out_of_order_data.keySet().iterator();
+				while (it.hasNext()) {
+					if (ConnectionUtils.getSequenceDistance(tcb_remote_next_expected_SEQ_num, it.next()) >= tcb_receive_buffer.capacity())
+						it.remove();
+				}
+			}
+			updateReceiveWindow();
+		}
+
+		/**
+		 * The length of the options, which our SYN and SYN/ACK packets carry
+		 * (see addSYNOptions).
+		 */
+		static final int SYN_OPTIONS_LENGTH = TcpPacket.MSS_OPTION_LENGTH
+				+ TcpPacket.WINDOW_SCALE_OPTION_LENGTH
+				+ TcpPacket.SACK_PERMITTED_OPTION_LENGTH;
+
+		/**
+		 * Adds the options to a SYN or SYN/ACK packet, which announce the
+		 * capabilities of our side of the connection.
+		 * 
+		 * @param tcpPacket
+		 */
+		void addSYNOptions(TcpPacket tcpPacket) {
+			tcpPacket.addMSSOption(TcpPacket.MAX_PAYLOAD_LENGTH);
+			// a SYN/ACK packet may carry the window scale option only as an answer to it
+			if (tcb_state != ConnectionState.S_SYN_RCVD || tcb_window_scaling)
+				tcpPacket.addWindowScaleOption(getWindowShift(tcb_receive_buffer.capacity()));
+			tcpPacket.addSACKPermittedOption();
+		}
+
+		/**
+		 * Takes over the capabilities, which the other side announced in the
+		 * options of its SYN or SYN/ACK packet.
+		 * 
+		 * @param tcpPacket
+		 */
+		void processSYNOptions(TcpPacket tcpPacket) {
+			// without MSS option we keep our maximum, which the other side
+			// accepted before options were supported
+			int mss = tcpPacket.getMSSOption();
+			tcb_send_mss = mss > 0 ? Math.min(mss, TcpPacket.MAX_PAYLOAD_LENGTH) : TcpPacket.MAX_PAYLOAD_LENGTH;
+			tcb_congestion_control.init(tcb_send_mss);
+			// windows are scaled only, if both sides sent the window scale option
+			int shift = tcpPacket.getWindowScaleOption();
+			tcb_window_scaling = shift >= 0;
+			tcb_send_window_shift = tcb_window_scaling ? shift : 0;
+			tcb_receive_window_shift = tcb_window_scaling ? getWindowShift(tcb_receive_buffer.capacity()) : 0;
+			// we send SACK options only, if the other side accepts them
+			tcb_sack_permitted = tcpPacket.isSACKPermitted();
+		}
+
+		/**
+		 * @param window
+		 * @return the smallest shift count, which makes the given window fit
+		 *         into the window field
+		 */
+		int getWindowShift(int window) {
+			int shift = 0;
+			while ((window >> shift) > TcpPacket.MAX_WINDOW && shift < TcpPacket.MAX_WINDOW_SCALE)
+				shift++;
+			return shift;
+		}
+
+		/**
+		 * Returns the value of the window field, which advertises our window.
+		 * The window in SYN packets is never scaled (RFC 7323).
+		 * 
+		 * @param syn
+		 *            true for a SYN or SYN/ACK packet
+		 * @return the (scaled) window, which fits into the window field
+		 */
+		int getAdvertisedWindow(boolean syn) {
+			int window = syn ? tcb_local_window : tcb_local_window >> tcb_receive_window_shift;
+			return Math.min(window, TcpPacket.MAX_WINDOW);
+		}
+
+		/**
+		 * Replaces the buffer for received, but not yet delivered data. This
+		 * is only possible before the connection is opened, since the window
+		 * scale is negotiated with the SYN packets.
+		 * 
+		 * @param size
+		 *            the size in bytes (limited to MAX_RECEIVE_BUFFER_SIZE)
+		 * @return false if the connection is already opened
+		 */
+		boolean setReceiveBufferSize(int size) {
+			if (tcb_state != ConnectionState.S_CLOSED && tcb_state != ConnectionState.S_LISTEN)
+				return false;
+			size = Math.max(TcpPacket.MAX_PAYLOAD_LENGTH, Math.min(size, MAX_RECEIVE_BUFFER_SIZE));
+			if (size != tcb_receive_buffer.capacity()) {
+				tcb_receive_buffer = new RingBuffer(size);
+				tcb_local_window = size;
+			}
+			return true;
+		}
+
+		/**
+		 * Fills tcb_sack_blocks with the blocks of the data, which arrived
+		 * out of order. Adjacent packets are merged to one block. The block
+		 * with the most recently received packet comes first, so the other
+		 * side learns about it, even if there are more blocks than fit into
+		 * the option (RFC 2018).
+		 * 
+		 * @return the amount of blocks
+		 */
+		int fillSACKBlocks() {
+			int packets = tcb_out_of_order_data.size();
+			if (packets == 0)
+				return 0;
+
+			// sort the packets by their distance to the next expected SEQ number
+			long[] offsets = new long[packets];
+			int i = 0;
+			for (Long seq : tcb_out_of_order_data.keySet()) {
+				offsets[i++] = ConnectionUtils.getSequenceDistance(tcb_remote_next_expected_SEQ_num, seq);
+			}
+			Arrays.sort(offsets);
+
+			// merge adjacent packets (block b is edges[2 * b] up to edges[2 * b + 1])
+			long[] edges = new long[2 * packets];
+			int blocks = 0;
+			for (i = 0; i < packets; i++) {
+				long start = offsets[i];
+				long end = start + tcb_out_of_order_data.get(ConnectionUtils.getNextSequenceNumber(tcb_remote_next_expected_SEQ_num, start)).length;
+				if (blocks > 0 && start <= edges[2 * blocks - 1]) {
+					edges[2 * blocks - 1] = Math.max(edges[2 * blocks - 1], end);
+				}
+				else {
+					edges[2 * blocks] = start;
+					edges[2 * blocks + 1] = end;
+					blocks++;
+				}
+			}
+
+			// the block of the most recent packet first, then the others from the highest SEQ number down
+			long recent = ConnectionUtils.getSequenceDistance(tcb_remote_next_expected_SEQ_num, tcb_last_out_of_order_SEQ_num);
+			int first = blocks - 1;
+			for (i = 0; i < blocks; i++) {
+				if (edges[2 * i] <= recent && recent < edges[2 * i + 1])
+					first = i;
+			}
+			int count = 0;
+			addSACKBlock(count++, edges, first);
+			for (i = blocks - 1; i >= 0 && count < TcpPacket.MAX_SACK_BLOCKS; i--) {
+				if (i != first)
+					addSACKBlock(count++, edges, i);
+			}
+			return count;
+		}
+
+		/**
+		 * Stores a block of fillSACKBlocks as SEQ numbers in tcb_sack_blocks.
+		 * 
+		 * @param index
+		 *            the index in tcb_sack_blocks
+		 * @param edges
+		 *            the edges of the blocks as offsets to the next expected
+		 *            SEQ number
+		 * @param block
+		 *            the index of the block in edges
+		 */
+		private void addSACKBlock(int index, long[] edges, int block) {
+			tcb_sack_blocks[2 * index] = ConnectionUtils.getNextSequenceNumber(tcb_remote_next_expected_SEQ_num, edges[2 * block]);
+			tcb_sack_blocks[2 * index + 1] = ConnectionUtils.getNextSequenceNumber(tcb_remote_next_expected_SEQ_num, edges[2 * block + 1]);
+		}
+
+		/**
+		 * Marks the sent packets, which the other side reported in the SACK
+		 * option of the given packet, as received (the scoreboard of RFC
+		 * 6675). Only the packets between them have to be resent.
+		 * 
+		 * @param tcpPacket
+		 *            a received ACK packet, which is not processed yet
+		 */
+		void processSACK(TcpPacket tcpPacket) {
+			int blocks = tcpPacket.getSACKBlockCount();
+			long inFlight = ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, tcb_local_sequence_num);
+			for (int b = 0; b < blocks; b++) {
+				long start = ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, tcpPacket.getSACKBlockEdge(2 * b));
+				long end = ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, tcpPacket.getSACKBlockEdge(2 * b + 1));
+				if (start >= end || end > inFlight)
+					continue; // not a block of the data in flight
+				for (TcpPacket packet : tcb_unacked_packets) {
+					long packetStart = ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, packet.getSEQNumber());
+					if (packetStart >= start && packetStart + packet.getPayloadLength() <= end)
+						packet.sacked = true;
+				}
+			}
+		}
+
+		/**
+		 * Returns the next packet, which has to be resent right away, because
+		 * the other side reported it as lost: the oldest unacknowledged packet
+		 * after three duplicate ACKs or a partial ACK (see detectLoss) and,
+		 * with SACK, each packet during fast recovery, which was not SACKed
+		 * although a later packet was. Each packet is resent only once per
+		 * fast recovery, the retransmission timer takes care of the rest.
+		 * The SACKed holes are only resent as long as the packets, which are
+		 * still in the network, fit into the congestion window (the pipe of
+		 * RFC 6675: packets, which are neither SACKed nor lost, and the
+		 * retransmissions).
+		 * 
+		 * @return the packet to resend, or null
+		 */
+		TcpPacket nextRetransmission() {
+			if (tcb_fast_retransmit) {
+				tcb_fast_retransmit = false;
+				TcpPacket first = tcb_unacked_packets.peekFirst();
+				if (first != null && !first.sacked && !(tcb_sack_permitted && first.retransmitted)) {
+					first.retransmitted = true;
+					tcb_metrics.retransmissions++;
+					return first;
+				}
+			}
+			if (!tcb_fast_recovery || !tcb_sack_permitted)
+				return null;
+
+			// from the newest packet to the oldest, a packet with a SACKed packet after it is lost
+			TcpPacket hole = null;
+			boolean sackedAfter = false;
+			long pipe = 0;
+			Iterator<TcpPacket> it = tcb_unacked_packets.descendingIterator();
+			while (it.hasNext()) {
+				TcpPacket packet = it.next();
+				if (packet.sacked) {
+					sackedAfter = true;
+					continue;
+				}
+				if (!sackedAfter)
+					pipe += packet.getPayloadLength();
+				if (packet.retransmitted)
+					pipe += packet.getPayloadLength();
+				else if (sackedAfter)
+					hole = packet;
+			}
+			if (hole == null || pipe + hole.getPayloadLength() > tcb_congestion_control.getCongestionWindow())
+				return null;
+			hole.retransmitted = true;
+			tcb_metrics.retransmissions++;
+			return hole;
+		}
+
+		/**
+		 * Decides after receiveData, if the received data packet is
+		 * acknowledged right away or if the ACK may be delayed (RFC 1122,
+		 * 4.2.3.2). Only full packets without the PSH flag are delayed, and at
+		 * least every second one is acknowledged: a short packet or a packet
+		 * with the PSH flag ends a write of the other side, which may wait for
+		 * the ACK. Data, which arrived out of order or filled a gap, is
+		 * acknowledged at once (so the other side notices the loss early).
+		 * 
+		 * @param tcpPacket
+		 * @return true if the ACK may be delayed
+		 */
+		boolean delayACK(TcpPacket tcpPacket) {
+			long payloadLength = tcpPacket.getPayloadLength();
+			tcb_unacknowledged_bytes += payloadLength;
+			boolean inOrder = tcb_out_of_order_data.isEmpty()
+					&& ConnectionUtils.getSequenceDistance(tcpPacket.getSEQNumber(), tcb_remote_next_expected_SEQ_num) == payloadLength;
+			boolean full = payloadLength >= TcpPacket.MAX_PAYLOAD_LENGTH && !tcpPacket.isPSH_Flag();
+			return inOrder && full && tcb_unacknowledged_bytes < 2 * TcpPacket.MAX_PAYLOAD_LENGTH;
+		}
+
+		/**
+		 * Moves up to maxlen bytes of the undelivered data to the given buffer
+		 * (which opens the window).
+		 * 
+		 * @param buf
+		 * @param offset
+		 * @param maxlen
+		 * @return the amount of delivered bytes
+		 */
+		int deliverData(byte[] buf, int offset, int maxlen) {
+			int length = tcb_receive_buffer.read(buf, offset, maxlen);
+			updateReceiveWindow();
+			return length;
+		}
+
+		/**
+		 * Sets the window, which we advertise, to the free space of the
+		 * undelivered data buffer and moves the
+		 * tcb_remote_last_expected_SEQ_num to the end of this window.
+		 */
+		void updateReceiveWindow() {
+			tcb_local_window = tcb_receive_buffer.free();
+			tcb_remote_last_expected_SEQ_num = ConnectionUtils.getNextSequenceNumber(tcb_remote_next_expected_SEQ_num, tcb_local_window);
+		}
+
+		/**
+		 * Returns true, if the given ACK number acknowledges a SEQ number
+		 * between the oldest unacknowledged SEQ number and the
+		 * tcb_local_expected_ack (an ACK number equal to the oldest
+		 * unacknowledged SEQ number is a duplicate ACK).
+		 * 
+		 * @param ackNum
+		 * @return
+		 */
+		boolean isACKAcceptable(long ackNum) {
+			return ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, ackNum)
+					<= ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, tcb_local_expected_ack);
+		}
+
+		/**
+		 * Fast retransmit and fast recovery (RFC 5681, 3.2 and RFC 6582): the
+		 * other side acknowledges each packet, which arrives behind a missing
+		 * one, right away with the same ACK number. Three of those duplicate
+		 * ACKs report the oldest unacknowledged packet as lost, long before
+		 * its retransmission timeout expires. With less than four packets in
+		 * flight and no new data in the send buffer, less duplicate ACKs are
+		 * possible, so one less than the packets in flight is enough (early
+		 * retransmit, RFC 5827). A single duplicate ACK is never enough, it
+		 * is as likely caused by reordering as by a loss. Until all
+		 * packets, which were in flight then, are acknowledged, an ACK of only
+		 * a part of them reports the next lost packet.
+		 * 
+		 * The packet, which has to be resent, is marked by
+		 * tcb_fast_retransmit.
+		 * 
+		 * @param tcpPacket
+		 *            a received ACK packet, which is not processed yet
+		 */
+		void detectLoss(TcpPacket tcpPacket) {
+			if (tcb_unacked_packets.isEmpty()) {
+				tcb_duplicate_acks = 0;
+				if (tcb_fast_recovery) {
+					tcb_fast_recovery = false;
+					tcb_congestion_control.onRecoveryEnd(0);
+				}
+				return;
+			}
+
+			long ackNum = tcpPacket.getACKNumber();
+			if (ackNum == tcb_local_oldest_unacked_SEQ_num) {
+				// a duplicate ACK carries no data (the window is not compared, because it
+				// changes with each read and we never send ACKs, which only update the window)
+				int threshold = DUPLICATE_ACK_THRESHOLD;
+				if (tcb_send_buffer_length == 0)
+					threshold = Math.min(threshold, tcb_unacked_packets.size() - 1);
+				if (tcpPacket.getPayloadLength() == 0
+						&& !tcpPacket.isSYN_Flag() && !tcpPacket.isFIN_Flag()) {
+					if (++tcb_duplicate_acks >= threshold && threshold >= 2 && !tcb_fast_recovery) {
+						tcb_congestion_control.onLoss(getBytesInFlight(), tcb_duplicate_acks);
+						startRecovery();
+						tcb_fast_retransmit = true;
+					}
+					else {
+						tcb_congestion_control.onDuplicateAck(getBytesInFlight());
+					}
+				}
+				return;
+			}
+
+			// new data was acknowledged
+			tcb_duplicate_acks = 0;
+			if (tcb_fast_recovery) {
+				if (ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, ackNum)
+						< ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, tcb_recovery_SEQ_num)) {
+					// partial ACK: the next packet was lost as well
+					tcb_fast_retransmit = true;
+				}
+				else {
+					tcb_fast_recovery = false;
+					tcb_congestion_control.onRecoveryEnd(ConnectionUtils.getSequenceDistance(ackNum, tcb_local_sequence_num));
+				}
+			}
+		}
+
+		/**
+		 * Starts the recovery of the packets, which are in flight now: until
+		 * they are acknowledged, each partial ACK reports the next lost packet
+		 * and each packet may be resent once (see nextRetransmission).
+		 */
+		void startRecovery() {
+			tcb_fast_recovery = true;
+			tcb_recovery_SEQ_num = tcb_local_sequence_num;
+			for (TcpPacket packet : tcb_unacked_packets) {
+				packet.retransmitted = false;
+			}
+		}
+
+		/**
+		 * Handles an expired retransmission timer: the timeout is doubled, the
+		 * congestion control is notified and the recovery of the packets in
+		 * flight starts (RFC 6582, 4). The oldest unacknowledged packet has to
+		 * be resent.
+		 * 
+		 * @return the oldest unacknowledged packet, or null
+		 */
+		TcpPacket retransmissionTimeout() {
+			backoffRetransmissionTimeout();
+			tcb_congestion_control.onTimeout(getBytesInFlight());
+			tcb_duplicate_acks = 0;
+			tcb_fast_retransmit = false;
+			startRecovery();
+			TcpPacket first = tcb_unacked_packets.peekFirst();
+			if (first != null) {
+				first.retransmitted = true;
+				tcb_metrics.retransmissions++;
+			}
+			return first;
+		}
+
+		/**
+		 * @return the amount of sent, but not yet acknowledged bytes
+		 */
+		long getBytesInFlight() {
+			return ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, tcb_local_sequence_num);
+		}
+
+		/**
+		 * Processes a cumulative ACK: all packets, which end before the given
+		 * ACK number, are removed from the unacknowledged packets and the
+		 * oldest unacknowledged SEQ number is moved forward.
+		 * 
+		 * @param ackNum
+		 */
+		void acknowledgePackets(long ackNum) {
+			long ackedBytes = ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, ackNum);
+			if (ackedBytes == 0)
+				return;
+
+			// the timed packet was acknowledged: update the round trip time
+			if (tcb_rtt_measuring
+					&& ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num, tcb_rtt_SEQ_num) <= ackedBytes) {
+				tcb_rtt_measuring = false;
+				updateRTT((System.nanoTime() - tcb_rtt_start_time) / 1000);
+			}
+
+			// the newest acknowledged packet, which was not resent, is a delivery rate sample
+			long now = System.nanoTime();
+			TcpPacket sample = null;
+			while (!tcb_unacked_packets.isEmpty()) {
+				TcpPacket packet = tcb_unacked_packets.peekFirst();
+				long packetEnd = ConnectionUtils.getSequenceDistance(tcb_local_oldest_unacked_SEQ_num,
+						packet.getSEQNumber()) + packet.getPayloadLength();
+				if (packetEnd > ackedBytes)
+					break;
+				tcb_unacked_packets.removeFirst();
+				if (!packet.retransmitted)
+					sample = packet;
+				recyclePacketBuffer(packet);
+			}
+			tcb_local_oldest_unacked_SEQ_num = ackNum;
+			tcb_timeouts_in_row = 0;
+			tcb_delivered += ackedBytes;
+			tcb_delivered_time = now;
+			if (sample != null && now - sample.deliveredTime > 0) {
+				long deliveryRate = (tcb_delivered - sample.delivered) * 1000000000L / (now - sample.deliveredTime);
+				tcb_congestion_control.onDeliveryRate(deliveryRate, tcb_delivered, sample.delivered);
+			}
+			tcb_congestion_control.onAck(ackedBytes, getBytesInFlight());
+
+			// new data was acknowledged, so the timer starts again for the remaining packets
+			restartRetransmissionTimer();
+		}
+
+		/**
+		 * @param buf
+		 *            the array with the payload of a packet, or null
+		 * @return a ByteBuffer of the given array (the last one, if it wraps
+		 *         the same array), or null
+		 */
+		ByteBuffer wrapPayload(byte[] buf) {
+			if (buf == null)
+				return null;
+			if (tcb_payload_data == null || tcb_payload_data.array() != buf)
+				tcb_payload_data = ByteBuffer.wrap(buf);
+			return tcb_payload_data;
+		}
+
+		/**
+		 * @return a buffer for a data packet of maximum size (reused, if possible)
+		 */
+		ByteBuffer obtainPacketBuffer() {
+			ByteBuffer buffer = tcb_free_packet_buffers.pollFirst();
+			if (buffer == null)
+				buffer = ByteBuffer.allocate(TcpPacket.HEADER_SIZE + TcpPacket.MAX_PAYLOAD_LENGTH);
+			return buffer;
+		}
+
+		/**
+		 * Hands the buffer of an acknowledged data packet back for reuse, unless
+		 * enough buffers are kept already. The packet must not be used any more
+		 * afterwards.
+		 * 
+		 * @param packet
+		 */
+		void recyclePacketBuffer(TcpPacket packet) {
+			if (packet.getPayloadLength() > 0 && tcb_free_packet_buffers.size() < MAX_FREE_PACKET_BUFFERS)
+				tcb_free_packet_buffers.addFirst(packet.rawData);
+		}
+
+		/**
+		 * Starts to measure the round trip time of the last created packet, if
+		 * no other packet is timed at the moment.
+		 */
+		void startRTTMeasurement() {
+			if (tcb_rtt_measuring)
+				return;
+			tcb_rtt_measuring = true;
+			tcb_rtt_SEQ_num = tcb_local_sequence_num;
+			tcb_rtt_start_time = System.nanoTime();
+		}
+
+		/**
+		 * Records the departure of a new data packet: the delivered bytes at
+		 * this time are stored in the packet for the delivery rate sample of
+		 * its ACK, and the departure time of the next packet is moved by the
+		 * time, which the packet takes at the pacing rate of the congestion
+		 * control.
+		 * 
+		 * @param packet
+		 *            a new packet, which is in tcb_unacked_packets already
+		 */
+		void recordDeparture(TcpPacket packet) {
+			long now = System.nanoTime();
+			if (tcb_unacked_packets.size() == 1) {
+				// nothing was in flight, the delivery rate is measured from now on
+				tcb_delivered_time = now;
+			}
+			packet.delivered = tcb_delivered;
+			packet.deliveredTime = tcb_delivered_time;
+
+			long pacingRate = tcb_congestion_control.getPacingRate();
+			if (pacingRate > 0) {
+				// the time, which was not used, can not be saved up for a burst
+				long departure = Math.max(tcb_next_departure_time - now, 0) + now;
+				tcb_next_departure_time = departure + packet.getPayloadLength() * 1000000000L / pacingRate;
+			}
+		}
+
+		/**
+		 * @return the time (in ns), until the next new packet may be sent at
+		 *         the pacing rate, or 0 if it may be sent now
+		 */
+		long getPacingDelay() {
+			if (tcb_congestion_control.getPacingRate() <= 0)
+				return 0;
+			return Math.max(tcb_next_departure_time - System.nanoTime(), 0);
 		}
 
 		/**
-		 * The method is called after a received TcpPacket was verified
-		 * successfully. The method changes the state of the connection and the
-		 * SEQ and/or ACK numbers of the TcpControlblock, depending on the
-		 * current state and the flags in the received TCP packet.
+		 * Updates the smoothed round trip time and its variation with a new
+		 * measured round trip time and computes the retransmission timeout of
+		 * it (as described in RFC 6298).
 		 * 
-		 * @param tcpPacket
-		 * @return true if the packet was an expected packet, otherwise false.
+		 * @param rtt
+		 *            the measured round trip time in microseconds
 		 */
-		public boolean acceptReceivedTcpPacket(TcpPacket tcpPacket) {
+		void updateRTT(long rtt) {
+			rtt = Math.max(rtt, 1);
+			if (tcb_srtt == 0) {
+				// first measurement
+				tcb_srtt = rtt;
+				tcb_rttvar = rtt / 2;
+			} else {
+				tcb_rttvar = (3 * tcb_rttvar + Math.abs(tcb_srtt - rtt)) / 4;
+				tcb_srtt = (7 * tcb_srtt + rtt) / 8;
+			}
+			tcb_rto = boundRTO(tcb_srtt + Math.max(1000, 4 * tcb_rttvar));
+			tcb_congestion_control.onRttSample(rtt);
+		}
 
-			boolean receivedPacketWasExpected = false;
-			switch (tcb_state) {
-			case S_CLOSED:
-				Logging.getInstance().LogConnectionError(this, "Package was received while TCP was in CLOSED state!");
-				break;
+		/**
+		 * Doubles the retransmission timeout after a timeout (exponential
+		 * backoff) and restarts the retransmission timer. The packet, which is
+		 * resent now, must not be used to measure the round trip time.
+		 */
+		void backoffRetransmissionTimeout() {
+			tcb_metrics.timeouts++;
+			tcb_rto = boundRTO(2 * tcb_rto);
+			tcb_rtt_measuring = false;
+			restartRetransmissionTimer();
+		}
 
-			case S_SYN_SENT:
-				if (tcpPacket.isSYN_Flag() && tcpPacket.isACK_Flag() && !tcpPacket.isFIN_Flag()) {
-					receivedPacketWasExpected = true;
-				} else {
-					Logging.getInstance().LogTcpPacketError(this, "Expected SYN/ACK packet, but actual package had SYN=" + tcpPacket.isSYN_Flag() + ", ACK=" + tcpPacket.isACK_Flag() + ", FIN=" + tcpPacket.isFIN_Flag());
-				}
-				break;
+		/**
+		 * @param rto
+		 * @return the given retransmission timeout limited to the bounds of the TCP stack
+		 */
+		private long boundRTO(long rto) {
+			return Math.min(Math.max(rto, minRTO), maxRTO);
+		}
 
-			case S_LISTEN:
-				if (tcpPacket.isSYN_Flag() && !tcpPacket.isACK_Flag() && !tcpPacket.isFIN_Flag()) {
-					// If we were in LISTEN state and received a valid SYN package, we go to SYN_RCVD state
-					tcb_state = ConnectionState.S_SYN_RCVD;
-					receivedPacketWasExpected = true;
-				} else {
-					Logging.getInstance().LogTcpPacketError(this, "Expected SYN packet, but actual package had SYN=" + tcpPacket.isSYN_Flag() + ", ACK=" + tcpPacket.isACK_Flag() + ", FIN=" + tcpPacket.isFIN_Flag());
-				}
-				break;
+		/**
+		 * Starts the retransmission timer for the oldest unacknowledged packet.
+		 */
+		void restartRetransmissionTimer() {
+			tcb_retransmission_deadline = System.nanoTime() + tcb_rto * 1000;
+		}
 
-			case S_SYN_RCVD:
-				if (!tcpPacket.isSYN_Flag() && tcpPacket.isACK_Flag() && !tcpPacket.isFIN_Flag()) {
-					// If we were in SYN_RCVD state and received a valid ACK
-					// package, we go to ESTABLISHED state
-					tcb_state = ConnectionState.S_ESTABLISHED;
-					receivedPacketWasExpected = true;
-				}
-				// active close
-				else if (tcpPacket.isFIN_Flag()) {
-					// If we were in SYN_RCVD state and received a FIN package,
-					// we go to FIN_WAIT_1 state
-					tcb_state = ConnectionState.S_FIN_WAIT_1;
+		/**
+		 * @return true, if the oldest unacknowledged packet has to be resent
+		 */
+		boolean isRetransmissionTimerExpired() {
+			return System.nanoTime() - tcb_retransmission_deadline >= 0;
+		}
 
-					receivedPacketWasExpected = true;
-				} else {
-					Logging.getInstance().LogTcpPacketError(this, "Expected ACK packet, but actual package had SYN=" + tcpPacket.isSYN_Flag() + ", ACK=" + tcpPacket.isACK_Flag() + ", FIN=" + tcpPacket.isFIN_Flag());
-				}
-				break;
+		/**
+		 * @return the time (in ms, at least 1) until the retransmission timer expires
+		 */
+		long getRetransmissionTimerRemaining() {
+			long remaining = (tcb_retransmission_deadline - System.nanoTime() + 999999) / 1000000;
+			return Math.max(remaining, 1);
+		}
 
-			case S_ESTABLISHED:
-				receivedPacketWasExpected = true;
-				break;
-			default:
-				receivedPacketWasExpected = true;
-				break;
-			}
-			
+		/**
+		 * @return the current retransmission timeout in ms (at least 1)
+		 */
+		long getRetransmissionTimeoutMillis() {
+			return Math.max((tcb_rto + 999) / 1000, 1);
+		}
 
-			if (receivedPacketWasExpected) {
-				if (tcpPacket.isACK_Flag()) {
+		/**
+		 * Appends up to len bytes of the given data to the send buffer, as
+		 * long as it does not exceed one packet.
+		 * 
+		 * @param buf
+		 * @param offset
+		 * @param len
+		 * @return the amount of bytes appended
+		 */
+		int bufferSendData(byte[] buf, int offset, int len) {
+			int length = Math.min(len, tcb_send_mss - tcb_send_buffer_length);
+			System.arraycopy(buf, offset, tcb_send_buffer, tcb_send_buffer_length, length);
+			tcb_send_buffer_length += length;
+			return length;
+		}
 
-					tcb_local_expected_ack = tcpPacket.getACKNumber();
-				}
-				if (tcpPacket.isSYN_Flag() || tcpPacket.isFIN_Flag()) {
-					// increase the sequence-numbers by 1
-					tcb_remote_next_expected_SEQ_num = ConnectionUtils.getNextSequenceNumber(tcpPacket.getSEQNumber(), 1);
-					tcb_remote_last_expected_SEQ_num = tcb_remote_next_expected_SEQ_num + TcpPacket.MAX_PAYLOAD_LENGTH;
-				}
-				else {
-					tcb_remote_next_expected_SEQ_num = ConnectionUtils.getNextSequenceNumber(tcpPacket.getSEQNumber(), tcpPacket.getPayloadLength());
-					tcb_remote_last_expected_SEQ_num = tcb_remote_next_expected_SEQ_num + TcpPacket.MAX_PAYLOAD_LENGTH;
-				}
-			}
-			return receivedPacketWasExpected;
+		/**
+		 * Nagle's algorithm (RFC 896): as long as sent data is not
+		 * acknowledged, the send buffer is only sent, when it holds a full
+		 * packet. The small writes in the meantime leave together.
+		 * 
+		 * @return true if the send buffer has to wait
+		 */
+		boolean isNagleDelaying() {
+			return !tcb_no_delay
+					&& !tcb_unacked_packets.isEmpty()
+					&& tcb_send_buffer_length < tcb_send_mss;
+		}
 
+		/**
+		 * Returns true, if a packet with the given payload length may be sent
+		 * without exceeding the window advertised by the other side and the
+		 * congestion window. If no packet is in flight, one packet is always
+		 * allowed (otherwise we would never learn about a window, which opens
+		 * again).
+		 * 
+		 * @param payloadLength
+		 * @return
+		 */
+		boolean isInsideSendWindow(int payloadLength) {
+			if (tcb_unacked_packets.isEmpty())
+				return true;
+			long window = Math.min(tcb_remote_window, tcb_congestion_control.getCongestionWindow());
+			return getBytesInFlight() + payloadLength <= window;
 		}
 
 		/**
@@ -1416,25 +3636,36 @@ public class TCP {
 			case S_CLOSED:
 				// SYN packet: create new initial SEQ number, set ACK-NR to 0
 				tcb_local_sequence_num = ConnectionUtils.getNewSequenceNumber();
+				tcb_local_oldest_unacked_SEQ_num = tcb_local_sequence_num;
 				tcb_remote_next_expected_SEQ_num = 0;
 				break;
 
 			case S_SYN_RCVD:
 				// SYN/ACK package: create new initial SEQ number
 				tcb_local_sequence_num = ConnectionUtils.getNewSequenceNumber();
+				tcb_local_oldest_unacked_SEQ_num = tcb_local_sequence_num;
 				break;
 
 			default:
 				break;
 			}
 
+			// SYN and SYN/ACK packets announce the options of the connection
+			boolean synOptions = tcb_state == ConnectionState.S_CLOSED || tcb_state == ConnectionState.S_SYN_RCVD;
+
 			TcpPacket next_packet = new TCP.TcpPacket(tcb_local_ip_addr, // local IP
 					tcb_remote_ip_addr, // remote IP
 					tcb_local_port, // local PORT
 					tcb_remote_port, // remote PORT
 					tcb_local_sequence_num, // SEQ number
 					tcb_remote_next_expected_SEQ_num, // ACK number
-					buf);
+					wrapPayload(buf), offset, len,
+					synOptions ? SYN_OPTIONS_LENGTH : 0,
+					// data packets are kept until they are acknowledged, so they use a pooled buffer
+					len > 0 ? obtainPacketBuffer() : null);
+			next_packet.setWindow(getAdvertisedWindow(synOptions));
+			if (synOptions)
+				addSYNOptions(next_packet);
 
 			// increase the tcb_local_sequence_num
 			tcb_local_sequence_num = ConnectionUtils.getNextSequenceNumber(tcb_local_sequence_num, len);
@@ -1446,14 +3677,14 @@ public class TCP {
 				next_packet.setSYN_Flag(true);
 			
 				// set connection state to SYN_SENT after successful sent a SYN packet
-				tcb_state = ConnectionState.S_SYN_SENT;
+				setState(ConnectionState.S_SYN_SENT);
 				break;
 			case S_SYN_SENT:
 				// create ACK packet
 				next_packet.setACK_Flag(true);
 				
 				// If we were in SYN_SENT state and create a new package, we are in Established state after sending it
-				tcb_state = ConnectionState.S_ESTABLISHED;
+				setState(ConnectionState.S_ESTABLISHED);
 				break;
 			case S_SYN_RCVD:
 				// create SYN/ACK packet
@@ -1461,6 +3692,8 @@ public class TCP {
 				next_packet.setACK_Flag(true);
 				break;
 			case S_ESTABLISHED:
+				// data packets carry the ACK of the received data as well
+				next_packet.setACK_Flag(true);
 				tcb_local_expected_ack = tcb_local_sequence_num;
 				break;
 			case S_CLOSING:
@@ -1496,6 +3729,35 @@ public class TCP {
 			return next_packet;
 		}
 
+		/**
+		 * Returns a TcpPacket, which acknowledges all data received so far. Its
+		 * SEQ number is the next SEQ number we send, so the other side accepts it
+		 * even if it already received data, whose ACK did not arrive here yet.
+		 * 
+		 * The packet uses the same buffer as the previous one, therefore it has
+		 * to be sent before the next ACK packet is created.
+		 * 
+		 * @return a new created ACK packet
+		 */
+		public TcpPacket createACKPacket() {
+			// report the data, which arrived out of order, in a SACK option
+			int sackBlocks = tcb_sack_permitted ? fillSACKBlocks() : 0;
+			TcpPacket ack_packet = new TCP.TcpPacket(tcb_local_ip_addr, // local IP
+					tcb_remote_ip_addr, // remote IP
+					tcb_local_port, // local PORT
+					tcb_remote_port, // remote PORT
+					tcb_local_sequence_num, // SEQ number
+					tcb_remote_next_expected_SEQ_num, // ACK number
+					null, 0, 0,
+					sackBlocks > 0 ? TcpPacket.SACK_OPTION_LENGTH + sackBlocks * TcpPacket.SACK_BLOCK_LENGTH : 0,
+					tcb_ack_packet_buffer);
+			ack_packet.setACK_Flag(true);
+			ack_packet.setWindow(getAdvertisedWindow(false));
+			if (sackBlocks > 0)
+				ack_packet.addSACKOption(tcb_sack_blocks, sackBlocks);
+			return ack_packet;
+		}
+
 		/**
 		 * Resets the connection to state to the given resetState.
 		 * @param resetState
@@ -1503,21 +3765,54 @@ public class TCP {
 		public void resetConnection(ConnectionState resetState) {
 			switch (resetState) {
 			case S_CLOSED:
+				unregisterConnection(this);
+				if (!tcb_metrics.retired) {
+					// the metrics of the closed connection are kept until it is opened again
+					tcb_metrics.enterState(ConnectionState.S_CLOSED);
+					tcb_metrics.rtt = tcb_srtt;
+					tcb_metrics.rto = tcb_rto;
+					retireMetrics(tcb_metrics);
+				}
 				tcb_local_ip_addr = 0;
 				tcb_remote_ip_addr = 0;
 				tcb_local_port = 0;
 				tcb_remote_port = 0;
 				tcb_local_sequence_num = 0;
 				tcb_local_expected_ack = 0;
+				tcb_local_oldest_unacked_SEQ_num = 0;
+				tcb_unacked_packets.clear();
+				tcb_free_packet_buffers.clear();
+				tcb_payload_data = null;
+				tcb_send_buffer_length = 0;
+				tcb_send_mss = TcpPacket.MAX_PAYLOAD_LENGTH;
+				tcb_sack_permitted = false;
+				tcb_window_scaling = false;
+				tcb_receive_window_shift = 0;
+				tcb_send_window_shift = 0;
+				tcb_remote_window = TcpPacket.MAX_PAYLOAD_LENGTH;
+				tcb_srtt = 0;
+				tcb_rttvar = 0;
+				tcb_rto = INITIAL_RTO * 1000L;
+				tcb_rtt_measuring = false;
+				tcb_timeouts_in_row = 0;
+				tcb_duplicate_acks = 0;
+				tcb_fast_recovery = false;
+				tcb_fast_retransmit = false;
+				tcb_congestion_control.init(TcpPacket.MAX_PAYLOAD_LENGTH);
+				tcb_delivered = 0;
+				tcb_delivered_time = 0;
+				tcb_next_departure_time = 0;
 				tcb_remote_next_expected_SEQ_num = 0;
 				tcb_remote_last_expected_SEQ_num = 0;
-				tcb_data = null;
-				tcb_state = resetState;
-				tcb_undelivered_data = new byte[TCP.TcpPacket.MAX_PAYLOAD_LENGTH];
-				tcb_undelivered_data_len = 0;
+				setState(resetState);
+				tcb_receive_buffer.clear();
+				tcb_out_of_order_data.clear();
+				tcb_local_window = tcb_receive_buffer.capacity();
+				tcb_unacknowledged_bytes = 0;
+				tcb_delayed_ack_deadline = 0;
 				break;
 			case S_LISTEN:
-				tcb_state = resetState;
+				setState(resetState);
 				break;
 			default:
 				break;
@@ -1532,14 +3827,53 @@ public class TCP {
 		 * @return
 		 */
 		public IP.Packet createIPPacket(TcpPacket tcpPacket) {
-			byte[] ip_data = tcpPacket.getByteArray();
-			IP.Packet ip = new IP.Packet(tcb_remote_ip_addr, 4,
-					1, // IP packet ID field: an advanced feature used for traceback and identifying spoofed addresses (we can safely leave it =1)
-					ip_data, ip_data.length);
+			return fillIPPacket(new IP.Packet(), tcpPacket);
+		}
+
+		/**
+		 * Fills the given IP packet with the given TCP packet. The IP packet
+		 * refers to the buffer of the TCP packet, no data is copied.
+		 * A packet with ACK flag gets the current ACK number and window (it may
+		 * be resent), which acknowledges all received data, so no delayed ACK
+		 * is needed any more.
+		 * 
+		 * @param ip
+		 * @param tcpPacket
+		 * @return the given IP packet
+		 */
+		IP.Packet fillIPPacket(IP.Packet ip, TcpPacket tcpPacket) {
+			if (tcpPacket.isACK_Flag()) {
+				tcpPacket.setACKNumber(tcb_remote_next_expected_SEQ_num);
+				tcpPacket.setWindow(getAdvertisedWindow(tcpPacket.isSYN_Flag()));
+				tcb_unacknowledged_bytes = 0;
+				tcb_delayed_ack_deadline = 0;
+			}
+			ip.destination = tcb_remote_ip_addr;
+			ip.protocol = 4;
+			ip.id = 1; // IP packet ID field: an advanced feature used for traceback and identifying spoofed addresses (we can safely leave it =1)
+			ip.data = tcpPacket.getByteArray(getPseudoHeaderSum());
+			ip.length = tcpPacket.packetLength;
 			ip.source = tcb_local_ip_addr;
 			return ip;
 		}
 
+		/**
+		 * Returns the partial checksum of the pseudo header of the packets of
+		 * this connection (the addresses and the protocol), which is the same
+		 * for sent and received packets. It is only computed again, when the
+		 * addresses change.
+		 * 
+		 * @return the partial sum (see Checksum.pseudoHeader)
+		 */
+		long getPseudoHeaderSum() {
+			if (tcb_pseudo_header_local_ip != tcb_local_ip_addr || tcb_pseudo_header_remote_ip != tcb_remote_ip_addr) {
+				tcb_pseudo_header_sum = Checksum.pseudoHeader(tcb_local_ip_addr, tcb_remote_ip_addr, IP.TCP_PROTOCOL);
+				tcb_pseudo_header_local_ip = tcb_local_ip_addr;
+				tcb_pseudo_header_remote_ip = tcb_remote_ip_addr;
+			}
+			return tcb_pseudo_header_sum;
+		}
+
 		/**
 		 * Creates an empty IP packet
 		 * 
@@ -1582,7 +3916,7 @@ public class TCP {
 		 */
 		public void setConnectionStateForTesting(
 				ConnectionState connectionStatus) {
-			tcb_state = connectionStatus;
+			setState(connectionStatus);
 		}
 
 		/**
@@ -1633,12 +3967,16 @@ public class TCP {
 			return this.tcb_remote_next_expected_SEQ_num;
 		}
 
-		public void setDataForTesting(byte[] data) {
-			this.tcb_data = data;
+		public int getSendWindowShiftForTesting() {
+			return this.tcb_send_window_shift;
+		}
+
+		public int getReceiveWindowShiftForTesting() {
+			return this.tcb_receive_window_shift;
 		}
 
-		public byte[] getDataForTesting() {
-			return this.tcb_data;
+		public int getRemoteWindowForTesting() {
+			return this.tcb_remote_window;
 		}
 
 
@@ -1654,9 +3992,325 @@ public class TCP {
 	 *             if the IP stack fails to initialize.
 	 */
 	public TCP(int address) throws IOException {
-		ip = new IP(address);
+		this(IP.create(address));
+	}
+
+	/**
+	 * Constructs a TCP stack on top of the given IP stack (e.g. to use another
+	 * transport than the default one).
+	 * 
+	 * @param ip
+	 *            The underlying IP stack.
+	 */
+	public TCP(IP ip) {
+		this.ip = ip;
 		// initialize some helper values
 		ConnectionUtils.init();
+		startDispatcher();
+		startTimer();
+	}
+
+	/**
+	 * @param remoteIp
+	 * @param remotePort
+	 * @param localPort
+	 * @return the key of the connection in the connection table
+	 */
+	static long getConnectionKey(int remoteIp, int remotePort, int localPort) {
+		return ((long) remoteIp << 32) | ((long) (remotePort & 0xFFFF) << 16) | (localPort & 0xFFFF);
+	}
+
+	/**
+	 * Reads the flags of a received packet, which is not decoded yet (e.g.
+	 * by the dispatcher).
+	 * 
+	 * @param packet
+	 * @return the flags (see TcpPacket.FLAG_FIN etc.), 0 if the packet is
+	 *         too short for a TCP header
+	 */
+	static int getFlags(IP.Packet packet) {
+		return packet.length > TcpPacket.FLAGS_OFFSET ? packet.data[TcpPacket.FLAGS_OFFSET] & 0xFF : 0;
+	}
+
+	/**
+	 * Routes the packets of the connection of the given socket (see its
+	 * TcpControlBlock) to it.
+	 * 
+	 * @param socket
+	 */
+	void registerConnection(Socket socket) {
+		TcpControlBlock control = socket.control;
+		synchronized (connections) {
+			connections.put(getConnectionKey(control.tcb_remote_ip_addr, control.tcb_remote_port, control.tcb_local_port), socket);
+		}
+	}
+
+	/**
+	 * Picks a random local port for the connection of the given client
+	 * socket, which no other connection to the same remote address and port
+	 * uses, and routes the packets of the connection to it (see
+	 * registerConnection).
+	 * 
+	 * @param socket
+	 */
+	void registerClientConnection(Socket socket) {
+		TcpControlBlock control = socket.control;
+		synchronized (connections) {
+			do {
+				control.tcb_local_port = random.nextInt(ConnectionUtils.MAX16BIT_VALUE - 1024) + 1024;
+			} while (connections.containsKey(getConnectionKey(control.tcb_remote_ip_addr, control.tcb_remote_port, control.tcb_local_port)));
+			registerConnection(socket);
+		}
+	}
+
+	/**
+	 * Adds the metrics of a closed connection to the metrics of the stack.
+	 * 
+	 * @param metrics
+	 */
+	void retireMetrics(TcpMetrics metrics) {
+		synchronized (closed_metrics) {
+			closed_metrics.add(metrics.snapshot());
+			metrics.retired = true;
+		}
+	}
+
+	/**
+	 * Returns the metrics of all connections of this stack: the counters and
+	 * times of the open and the closed connections are added up, the round
+	 * trip time and retransmission timeout are the average of the open
+	 * connections. The server sockets only add their time in the LISTEN
+	 * state, they are no connections themselves. A connection, which closes
+	 * meanwhile, may be counted twice or not at all.
+	 * 
+	 * @return a snapshot of the metrics
+	 */
+	public TcpMetrics getMetrics() {
+		ArrayList<Socket> sockets;
+		synchronized (connections) {
+			sockets = new ArrayList<Socket>(connections.values());
+			sockets.addAll(listeners.values());
+		}
+
+		TcpMetrics total = new TcpMetrics();
+		synchronized (closed_metrics) {
+			total.add(closed_metrics);
+		}
+		// the lock of a socket is not taken while holding the lock of the connections
+		int measured = 0;
+		long rtt = 0;
+		long rto = 0;
+		for (Socket socket : sockets) {
+			TcpMetrics metrics;
+			synchronized (socket.control) {
+				if (socket.control.tcb_metrics.retired)
+					continue;
+				metrics = socket.control.getMetrics();
+			}
+			total.add(metrics);
+			if (metrics.rtt > 0) {
+				measured++;
+				rtt += metrics.rtt;
+				rto += metrics.rto;
+			}
+		}
+		if (measured > 0) {
+			total.rtt = rtt / measured;
+			total.rto = rto / measured;
+		}
+		return total;
+	}
+
+	/**
+	 * Stops routing the packets of the given connection to its socket.
+	 * 
+	 * @param control
+	 */
+	void unregisterConnection(TcpControlBlock control) {
+		long key = getConnectionKey(control.tcb_remote_ip_addr, control.tcb_remote_port, control.tcb_local_port);
+		synchronized (connections) {
+			Socket socket = connections.get(key);
+			if (socket != null && socket.control == control)
+				connections.remove(key);
+		}
+	}
+
+	/**
+	 * Routes all packets to the local port of the given server socket, which
+	 * belong to no known connection, to it.
+	 * 
+	 * @param socket
+	 * @throws IOException
+	 *             if another socket is bound to the port already
+	 */
+	void registerListener(Socket socket) throws IOException {
+		int port = socket.control.tcb_local_port;
+		synchronized (connections) {
+			if (listeners.containsKey(port))
+				throw new IOException("Port " + port + " is already in use!");
+			listeners.put(port, socket);
+		}
+	}
+
+	/**
+	 * Stops routing new connections to the given server socket.
+	 * 
+	 * @param socket
+	 */
+	void unregisterListener(Socket socket) {
+		synchronized (connections) {
+			if (listeners.get(socket.control.tcb_local_port) == socket)
+				listeners.remove(socket.control.tcb_local_port);
+		}
+	}
+
+	/**
+	 * Hands the given received packet to the socket of its connection. A
+	 * connection request (SYN packet) of no known connection opens a new
+	 * connection at the server socket of its destination port. Other packets
+	 * are dropped, if there is no such socket or its queue is full.
+	 * 
+	 * @param packet
+	 */
+	private void dispatch(IP.Packet packet) {
+		if (packet.length < TcpPacket.HEADER_SIZE) {
+			Logging.getInstance().LogTcpPacketInformation(null, "Dropped a packet, which is too short for a TCP packet.");
+			return;
+		}
+		int sourcePort = ((packet.data[0] & 0xFF) << 8) | (packet.data[1] & 0xFF);
+		int destinationPort = ((packet.data[2] & 0xFF) << 8) | (packet.data[3] & 0xFF);
+
+		Socket socket;
+		Socket listener = null;
+		synchronized (connections) {
+			socket = connections.get(getConnectionKey(packet.source, sourcePort, destinationPort));
+			if (socket == null)
+				listener = listeners.get(destinationPort);
+		}
+		if (listener != null && (getFlags(packet) & (TcpPacket.FLAG_SYN | TcpPacket.FLAG_ACK)) == TcpPacket.FLAG_SYN) {
+			// SYN (without ACK) flag: connection request
+			listener.open_connection(packet, sourcePort);
+		}
+		else if (socket == null) {
+			if (Logging.getInstance().isLoggable(Logging.Level.INFO))
+				Logging.getInstance().LogTcpPacketInformation(null, "Dropped a packet for port " + destinationPort + ", which has no connection.");
+		}
+		else if (!socket.received_IP_packets.offer(packet)) {
+			Logging.getInstance().LogTcpPacketInformation(socket.control, "Dropped a packet, because the socket does not process its packets fast enough.");
+		}
+		else {
+			socket.packet_queued();
+		}
+	}
+
+	/**
+	 * Starts the thread, which receives all packets of the IP stack and
+	 * dispatches them to the sockets.
+	 */
+	private void startDispatcher() {
+		final IP.Packet packet = new IP.Packet(0, 0, 0, new byte[] {}, 0);
+		dispatcher = new Thread(new Runnable() {
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						if (ip.ip_poll(packet, 0))
+							dispatch(packet);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "TCP dispatcher " + ip.getLocalAddress());
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * A socket, which waits for the timer, and its deadline (in ms).
+	 */
+	private static class TimerEntry implements Comparable<TimerEntry> {
+		final Socket socket;
+		final long deadline;
+
+		TimerEntry(Socket socket, long deadline) {
+			this.socket = socket;
+			this.deadline = deadline;
+		}
+
+		public int compareTo(TimerEntry other) {
+			return deadline < other.deadline ? -1 : (deadline == other.deadline ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Lets the timer call on_timer of the given socket at the given time
+	 * (e.g. to send a delayed ACK). A socket is only queued again, if the
+	 * deadline is earlier than the one, for which it is queued already.
+	 * 
+	 * @param socket
+	 * @param deadline
+	 *            the time (in ms) the socket is due
+	 */
+	void scheduleTimer(Socket socket, long deadline) {
+		synchronized (timer_queue) {
+			if (socket.timer_deadline != 0 && socket.timer_deadline <= deadline)
+				return;
+			socket.timer_deadline = deadline;
+			timer_queue.add(new TimerEntry(socket, deadline));
+			timer_queue.notify();
+		}
+	}
+
+	/**
+	 * Starts the thread, which calls on_timer of the sockets, when they are
+	 * due.
+	 */
+	private void startTimer() {
+		timer = new Thread(new Runnable() {
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					Socket socket;
+					try {
+						synchronized (timer_queue) {
+							while (timer_queue.isEmpty())
+								timer_queue.wait();
+							long remaining = timer_queue.peek().deadline - System.currentTimeMillis();
+							if (remaining > 0) {
+								timer_queue.wait(remaining);
+								continue;
+							}
+							TimerEntry entry = timer_queue.poll();
+							socket = entry.socket;
+							if (socket.timer_deadline == entry.deadline)
+								socket.timer_deadline = 0;
+						}
+					} catch (InterruptedException e) {
+						break;
+					}
+					// the socket lock is not held while waiting for the next deadline
+					socket.on_timer();
+				}
+			}
+		}, "TCP timer " + ip.getLocalAddress());
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	/**
+	 * Sets the bounds of the retransmission timeout, which is computed for
+	 * each connection from its measured round trip time.
+	 * 
+	 * @param minMillis
+	 *            the lower bound in ms
+	 * @param maxMillis
+	 *            the upper bound in ms
+	 */
+	public void setRetransmissionTimeoutBounds(long minMillis, long maxMillis) {
+		if (minMillis <= 0 || maxMillis < minMillis) {
+			throw new IllegalArgumentException("Invalid retransmission timeout bounds: " + minMillis + "-" + maxMillis);
+		}
+		minRTO = minMillis * 1000;
+		maxRTO = maxMillis * 1000;
 	}
 
 	/**
@@ -1674,7 +4328,24 @@ public class TCP {
 	 *             when an invalid socket is passed
 	 */
 	public Socket socket(int port) throws IOException {
-		return new Socket(port);
+		return new Socket(port, DEFAULT_BACKLOG);
+	}
+
+	/**
+	 * @return a new server socket for this stack bound to the given port
+	 * @param port
+	 *            the port to bind the socket to.
+	 * @param backlog
+	 *            the maximum amount of connections, which are kept until
+	 *            they are accepted.
+	 * @throws IOException
+	 *             if the port is already in use.
+	 */
+	public Socket socket(int port, int backlog) throws IOException {
+		if (backlog < 1) {
+			throw new IllegalArgumentException("The backlog must be at least 1!");
+		}
+		return new Socket(port, backlog);
 	}
 
 }
@@ -0,0 +1,223 @@
+package nl.vu.cs.cn;
+
+/**
+ * This class counts, what happened on a connection, so slow connections can
+ * be analyzed without parsing the log. Each TcpControlBlock keeps the metrics
+ * of its current connection, which are only changed while holding its lock.
+ * Socket.getMetrics returns a snapshot of them, TCP.getMetrics adds up the
+ * snapshots of all connections of the stack, including the closed ones.
+ * <br/>
+ * Counters only grow, the round trip time and retransmission timeout are the
+ * current estimates (gauges). Times are in microseconds, except the time
+ * spent in each state, which is in milliseconds.
+ */
+public class TcpMetrics {
+
+	/** The amount of sent TCP packets (including retransmissions). */
+	long segmentsSent;
+
+	/** The amount of sent payload bytes (including retransmissions). */
+	long bytesSent;
+
+	/** The amount of received TCP packets (including the rejected ones, but not the packets of other hosts or protocols). */
+	long segmentsReceived;
+
+	/** The amount of received payload bytes (like segmentsReceived). */
+	long bytesReceived;
+
+	/** The amount of resent packets. */
+	long retransmissions;
+
+	/** The amount of expired retransmission timers. */
+	long timeouts;
+
+	/** The amount of rejected packets for each reason (see TcpControlBlock.verifyReceivedPacket). */
+	final long[] verifyFailures = new long[PacketVerifyFailure.values().length];
+
+	/** The time (in nanoseconds), which the connection spent in each state before the current one. */
+	final long[] stateTime = new long[ConnectionState.values().length];
+
+	/** The current state. */
+	ConnectionState state;
+
+	/** The time (System.nanoTime), when the connection entered the current state. */
+	long stateSince;
+
+	/** The smoothed round trip time (in microseconds, 0 before the first measurement). */
+	long rtt;
+
+	/** The retransmission timeout (in microseconds). */
+	long rto;
+
+	/**
+	 * The amount of connections, which were added up (see add). The metrics
+	 * of a socket count as a connection from the opening handshake on (see
+	 * enterState), so a server socket counts none.
+	 */
+	int connections;
+
+	/** True, if the metrics of the closed connection were added to the metrics of the stack. */
+	boolean retired;
+
+	/**
+	 * @param state
+	 *            the state of the new connection
+	 */
+	TcpMetrics(ConnectionState state) {
+		this.state = state;
+		stateSince = System.nanoTime();
+	}
+
+	/**
+	 * Constructor used for the sum of the metrics of several connections (see
+	 * add)
+	 */
+	TcpMetrics() {
+		this(ConnectionState.S_CLOSED);
+	}
+
+	/**
+	 * Counts the time of the current state and switches to the given one.
+	 *
+	 * @param newState
+	 */
+	void enterState(ConnectionState newState) {
+		if (newState == state)
+			return;
+		if (newState == ConnectionState.S_SYN_SENT || newState == ConnectionState.S_SYN_RCVD)
+			connections = 1;
+		long now = System.nanoTime();
+		stateTime[state.ordinal()] += now - stateSince;
+		state = newState;
+		stateSince = now;
+	}
+
+	/**
+	 * @return a copy, in which the time of the current state is counted up to now
+	 */
+	TcpMetrics snapshot() {
+		TcpMetrics copy = new TcpMetrics(state);
+		copy.add(this);
+		copy.connections = connections;
+		copy.stateTime[state.ordinal()] += copy.stateSince - stateSince;
+		copy.rtt = rtt;
+		copy.rto = rto;
+		return copy;
+	}
+
+	/**
+	 * Adds the counters and the times per state of the given metrics (but not
+	 * the gauges).
+	 *
+	 * @param other
+	 */
+	void add(TcpMetrics other) {
+		segmentsSent += other.segmentsSent;
+		bytesSent += other.bytesSent;
+		segmentsReceived += other.segmentsReceived;
+		bytesReceived += other.bytesReceived;
+		retransmissions += other.retransmissions;
+		timeouts += other.timeouts;
+		for (int i = 0; i < verifyFailures.length; i++)
+			verifyFailures[i] += other.verifyFailures[i];
+		for (int i = 0; i < stateTime.length; i++)
+			stateTime[i] += other.stateTime[i];
+		connections += other.connections;
+	}
+
+	public long getSegmentsSent() {
+		return segmentsSent;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getSegmentsReceived() {
+		return segmentsReceived;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public long getRetransmissions() {
+		return retransmissions;
+	}
+
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @param failure
+	 * @return the amount of received packets, which were rejected for the
+	 *         given reason
+	 */
+	public long getVerifyFailures(PacketVerifyFailure failure) {
+		return verifyFailures[failure.ordinal()];
+	}
+
+	/**
+	 * @param state
+	 * @return the time (in ms), which was spent in the given state
+	 */
+	public long getTimeInState(ConnectionState state) {
+		return stateTime[state.ordinal()] / 1000000;
+	}
+
+	/**
+	 * @return the current state of a connection (S_CLOSED for the metrics of
+	 *         a stack)
+	 */
+	public ConnectionState getState() {
+		return state;
+	}
+
+	/**
+	 * @return the smoothed round trip time in microseconds (of the metrics
+	 *         of a stack: the average of the open connections), 0 if it was
+	 *         not measured
+	 */
+	public long getRTT() {
+		return rtt;
+	}
+
+	/**
+	 * @return the retransmission timeout in microseconds (of the metrics of
+	 *         a stack: the average of the open connections)
+	 */
+	public long getRetransmissionTimeout() {
+		return rto;
+	}
+
+	/**
+	 * @return the amount of connections, whose metrics these are
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("connections=").append(connections)
+				.append(", segmentsSent=").append(segmentsSent)
+				.append(", bytesSent=").append(bytesSent)
+				.append(", segmentsReceived=").append(segmentsReceived)
+				.append(", bytesReceived=").append(bytesReceived)
+				.append(", retransmissions=").append(retransmissions)
+				.append(", timeouts=").append(timeouts)
+				.append(", rtt=").append(rtt)
+				.append(", rto=").append(rto);
+		for (PacketVerifyFailure failure : PacketVerifyFailure.values()) {
+			if (verifyFailures[failure.ordinal()] > 0)
+				sb.append(", ").append(failure).append('=').append(verifyFailures[failure.ordinal()]);
+		}
+		for (ConnectionState s : ConnectionState.values()) {
+			if (stateTime[s.ordinal()] > 0)
+				sb.append(", ").append(s).append('=').append(getTimeInState(s)).append("ms");
+		}
+		return sb.toString();
+	}
+}
@@ -33,6 +33,11 @@ public class PacketLossControl {
 	private int _amountOfLostFINReceivingPackets=0;
 	private int _amountOfLostFINACKPackets=0;
 	
+	// the numbers of the data packets (counted from 1, including the resent ones), which should be lost,
+	// and the amount of data packets, which were sent since they were specified
+	private int[] _lostDataPackets = new int[0];
+	private int _amountOfSentDataPackets=0;
+	
 	
 	/**
 	 * This method is called before an IP packet is sent. 
@@ -73,6 +78,14 @@ public class PacketLossControl {
 			_amountOfLostFINACKPackets--;
 			return true;
 		}
+		if (tcpPacket.getPayloadLength() > 0 && _lostDataPackets.length > 0) {
+			// loose the data packets with the given numbers
+			_amountOfSentDataPackets++;
+			for (int number : _lostDataPackets) {
+				if (number == _amountOfSentDataPackets)
+					return true;
+			}
+		}
 		
 		
 		return false;
@@ -131,4 +144,16 @@ public class PacketLossControl {
 	public void SetFINACKPacketLost(int amountOfLostFINACKPackets) {
 		_amountOfLostFINACKPackets = amountOfLostFINACKPackets;
 	}
+	
+	
+	/**
+	 * Specifies which data packets (packets with payload) should be lost,
+	 * e.g. 2 and 4 for the second and the fourth data packet, which is sent
+	 * from now on (resent packets are counted as well).
+	 * @param numbersOfLostDataPackets
+	 */
+	public void SetDataPacketsLost(int... numbersOfLostDataPackets) {
+		_lostDataPackets = numbersOfLostDataPackets;
+		_amountOfSentDataPackets = 0;
+	}
 }
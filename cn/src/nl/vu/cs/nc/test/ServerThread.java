@@ -33,10 +33,10 @@ public class ServerThread extends Thread {
 			
 			_messageHistory.append("\nListening for connections...");
 			// listen at serverSocketListener and accept new incoming connections
-			serverSocket.accept();
+			Socket connection = serverSocket.accept();
 			
 			//byte[] readBuffer = new byte[8152];
-			//serverSocket.read(readBuffer, 0, 8152);
+			//connection.read(readBuffer, 0, 8152);
 			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
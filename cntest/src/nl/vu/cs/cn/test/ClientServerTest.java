@@ -1,6 +1,9 @@
 package nl.vu.cs.cn.test;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 
@@ -8,6 +11,7 @@ import nl.vu.cs.cn.ConnectionState;
 import nl.vu.cs.cn.ConnectionUtils;
 import nl.vu.cs.cn.Logging;
 import nl.vu.cs.cn.TCP;
+import nl.vu.cs.cn.TcpMetrics;
 import nl.vu.cs.cn.IP.IpAddress;
 import nl.vu.cs.cn.TCP.Socket;
 import nl.vu.cs.cn.TCP.TcpPacket;
@@ -17,6 +21,9 @@ public class ClientServerTest extends AndroidTestCase {
 
 	protected void setUp() throws Exception {
 		super.setUp();
+		// log the connection information and the state of each connection
+		Logging.getInstance().setLevel(Logging.Level.INFO);
+		Logging.getInstance().setDetailedLogging(true);
 	}
 
 	protected void tearDown() throws Exception {
@@ -86,7 +93,7 @@ public class ClientServerTest extends AndroidTestCase {
 				Socket serverSocket = getServerSocket(serverIP, serverPort);
 				
 				// listen at serverSocketListener and accept new incoming connections
-				serverSocket.accept();
+				serverSocket = serverSocket.accept();
 				
 				// connection state should be ESTABLISHED
 				assertEquals(ConnectionState.S_ESTABLISHED, serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
@@ -166,7 +173,7 @@ public class ClientServerTest extends AndroidTestCase {
 				Socket serverSocket = getServerSocket(serverIP, serverPort);
 				
 				// listen at serverSocketListener and accept new incoming connections
-				serverSocket.accept();
+				serverSocket = serverSocket.accept();
 				
 				// connection state should be ESTABLISHED
 				assertEquals(ConnectionState.S_ESTABLISHED, serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
@@ -224,6 +231,9 @@ public class ClientServerTest extends AndroidTestCase {
 				byte[] textByteArray = textToSend.getBytes();
 				clientSocket.write(textByteArray, 0, textByteArray.length);
 				
+				// write does not wait for the ACK: read processes it (and returns after the receive timeout)
+				clientSocket.read(new byte[1], 0, 1);
+				
 				// verify SEQ/ACK numbers
 				TcpPacket tcpPacket = clientSocket.getLastReceivedTcpPacketForTesting();
 				if (tcpPacket == null)
@@ -261,10 +271,18 @@ public class ClientServerTest extends AndroidTestCase {
 	        	int serverIP = 1;
 	    		int serverPort = 80;
 	    		byte[] exptectedTextToReceive = "Established".getBytes();
-				Socket serverSocket = getServerSocket(serverIP, serverPort);
+	    		TCP tcpServer = null;
+	    		Socket serverListener = null;
+	    		try {
+	    			tcpServer = new TCP(serverIP);
+	    			serverListener = tcpServer.socket(serverPort);
+	    		} catch (IOException e) {
+	    			e.printStackTrace();
+	    			fail("Error during server initialization: " + e.getMessage());
+	    		}
 				
 				// listen at serverSocketListener and accept new incoming connections
-				serverSocket.accept();
+				Socket serverSocket = serverListener.accept();
 				
 				// connection state should be ESTABLISHED
 				assertEquals(ConnectionState.S_ESTABLISHED, serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
@@ -290,6 +308,11 @@ public class ClientServerTest extends AndroidTestCase {
 				ConnectionState check = serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting();
 				Assert.assertEquals(ConnectionState.S_CLOSED, check);
 				
+				// the server socket is no connection, the metrics of the stack count the closed one
+				assertEquals(0, serverListener.getMetrics().getConnections());
+				TcpMetrics metrics = tcpServer.getMetrics();
+				assertEquals(1, metrics.getConnections());
+				assertEquals(exptectedTextToReceive.length, metrics.getBytesReceived());
 	        }
 	    });
 		serverThread.start();
@@ -325,6 +348,12 @@ public class ClientServerTest extends AndroidTestCase {
 				
 				// connection state should be CLOSED
 				assertEquals(ConnectionState.S_CLOSED, clientSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
+				
+				// the metrics of the closed connection are kept
+				TcpMetrics metrics = clientSocket.getMetrics();
+				assertEquals(ConnectionState.S_CLOSED, metrics.getState());
+				assertEquals(1, metrics.getConnections());
+				assertEquals(textByteArray.length, metrics.getBytesSent());
 	        }
 		});
 		clientThread.start();
@@ -358,7 +387,7 @@ public class ClientServerTest extends AndroidTestCase {
 	        	exptectedTextToReceive = textToSend.toString().getBytes();
 				
 				// listen at serverSocketListener and accept new incoming connections
-				serverSocket.accept();
+				serverSocket = serverSocket.accept();
 				
 				try {
 					this.wait(1000);	// wait a bit
@@ -445,7 +474,7 @@ public class ClientServerTest extends AndroidTestCase {
 	        	exptectedTextToReceive = textToSend.toString().getBytes();
 				
 				// listen at serverSocketListener and accept new incoming connections
-				serverSocket.accept();
+				serverSocket = serverSocket.accept();
 				
 				try {
 					this.wait(1000);	// wait a bit
@@ -534,7 +563,7 @@ public class ClientServerTest extends AndroidTestCase {
 				Socket serverSocket = ClientServerTest.getServerSocket(serverIP, serverPort);
 				
 				// listen at serverSocketListener and accept new incoming connections
-				serverSocket.accept();
+				serverSocket = serverSocket.accept();
 				
 				// connection state should be ESTABLISHED
 				assertEquals(ConnectionState.S_ESTABLISHED, serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
@@ -608,4 +637,461 @@ public class ClientServerTest extends AndroidTestCase {
 			fail("Exception when joining the client and server thread: " + e.getMessage());
 		}
 	}
+	
+	/**
+	 * A burst of small writes of one thread is collected into a few packets
+	 * (Nagle's algorithm), because write does not wait for the ACKs.
+	 */
+	public void testT026SequentialSmallWrites() {
+		final int writes = 200;
+		final int writeLen = 64;
+		// the server reads nothing (and sends no ACKs), until the client returned from its writes
+		final CountDownLatch written = new CountDownLatch(1);
+		
+		// START SERVER in a thread
+		Thread serverThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test server");
+	    
+	        	int serverIP = 1;
+	    		int serverPort = 80;
+	    		int expectedLen = writes * writeLen;
+				Socket serverSocket = getServerSocket(serverIP, serverPort);
+				
+				// listen at serverSocketListener and accept new incoming connections
+				serverSocket = serverSocket.accept();
+				try {
+					assertTrue(written.await(10, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					fail("Interrupted while waiting for the writes of the client");
+				}
+				
+				byte[] buf = new byte[expectedLen];
+				int receivedLen = 0;
+				while (receivedLen < expectedLen) {
+					int len = serverSocket.read(buf, receivedLen, expectedLen - receivedLen);
+					if (len <= 0) {
+						fail("Failed to read a message from the client!");
+					}
+					receivedLen += len;
+				}
+				
+				for(int i = 0; i<expectedLen; i++) {
+					assertEquals((byte) (i / writeLen), buf[i]);
+				}
+				
+				// the writes, which were made while the first one was not acknowledged, left together
+				assertTrue(serverSocket.getLastReceivedTcpPacketForTesting().getPayloadLength() > writeLen);
+				
+				// read again to answer the close of the client
+				serverSocket.read(buf, 0, 1);
+				assertEquals(ConnectionState.S_CLOSED, serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
+	        }
+	    });
+		serverThread.start();
+		
+		
+		
+	    // START CLIENT in a thread
+		Thread clientThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test client");
+	    	    
+	        	int serverIP = 1;
+	        	int clientIP = 2;
+	        	int server_socket = 80;
+	        	
+				Socket clientSocket = getClientSocket(clientIP);
+				
+				// create server IP address and connect to server
+				IpAddress serverAddress = IpAddress.getAddress("192.168.0." + serverIP);
+				if (!clientSocket.connect(serverAddress, server_socket)) {
+					fail("Failure during connect to server!");
+				}
+				
+				byte[] buf = new byte[writeLen];
+				for (int i = 0; i < writes; i++) {
+					Arrays.fill(buf, (byte) i);
+					assertEquals(writeLen, clientSocket.write(buf, 0, writeLen));
+				}
+				written.countDown();
+				
+				// the writes left together in far less packets (the count includes the handshake)
+				assertTrue(clientSocket.getMetrics().getSegmentsSent() < writes / 2);
+				
+				// close waits for the ACKs of the collected data
+				assertTrue(clientSocket.close());
+			}
+		});
+		clientThread.start();
+		
+		
+		try {
+			serverThread.join();
+			clientThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception when joining the client and server thread: " + e.getMessage());
+		}
+	}
+	
+	public void testT027TwoClientsOnOnePort() {
+		final int[] clientIPs = { 2, 3 };
+		// the texts of the clients have the same length (read waits for the whole buffer)
+		final int textLength = "Hello from client 2".length();
+		
+		// START SERVER in a thread
+		Thread serverThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test server");
+	    
+	        	int serverIP = 1;
+	    		int serverPort = 80;
+				Socket serverSocket = getServerSocket(serverIP, serverPort);
+				
+				// accept both connections, before reading from any of them
+				Socket[] connections = new Socket[clientIPs.length];
+				for (int i = 0; i < connections.length; i++) {
+					connections[i] = serverSocket.accept();
+					assertEquals(ConnectionState.S_ESTABLISHED, connections[i].getTcpControlBlockForTesting().getConnectionStateForTesting());
+				}
+				
+				// each connection receives the text of another client, which is echoed
+				String[] texts = new String[connections.length];
+				byte[] buf = new byte[1024];
+				for (int i = 0; i < connections.length; i++) {
+					if (connections[i].read(buf, 0, textLength) != textLength) {
+						fail("Failed to read a message from the client!");
+					}
+					texts[i] = new String(buf, 0, textLength);
+					assertEquals(textLength, connections[i].write(buf, 0, textLength));
+				}
+				assertFalse(texts[0].equals(texts[1]));
+				
+				// read again to answer the close of the clients
+				for (Socket connection : connections) {
+					connection.read(buf, 0, 1024);
+					assertEquals(ConnectionState.S_CLOSED, connection.getTcpControlBlockForTesting().getConnectionStateForTesting());
+				}
+	        }
+	    });
+		serverThread.start();
+		
+		
+		
+	    // START CLIENTS in a thread each, from different addresses to the same server port
+		Thread[] clientThreads = new Thread[clientIPs.length];
+		for (int i = 0; i < clientIPs.length; i++) {
+			final int clientIP = clientIPs[i];
+			clientThreads[i] = new Thread(new Runnable() {
+		        public void run() {
+		        	Logging.getInstance().LogConnectionInformation(null, "test client " + clientIP);
+		    	    
+		        	int serverIP = 1;
+		        	int server_socket = 80;
+		        	String textToSend = "Hello from client " + clientIP;
+		        	
+					Socket clientSocket = getClientSocket(clientIP);
+					
+					// create server IP address and connect to server
+					IpAddress serverAddress = IpAddress.getAddress("192.168.0." + serverIP);
+					if (!clientSocket.connect(serverAddress, server_socket)) {
+						fail("Failure during connect to server!");
+					}
+					
+					byte[] textByteArray = textToSend.getBytes();
+					assertEquals(textByteArray.length, clientSocket.write(textByteArray, 0, textByteArray.length));
+					
+					// the echo comes back on the connection of this client
+					byte[] buf = new byte[textLength];
+					assertEquals(textLength, clientSocket.read(buf, 0, textLength));
+					assertEquals(textToSend, new String(buf));
+					
+					assertTrue(clientSocket.close());
+		        }
+			});
+			clientThreads[i].start();
+		}
+		
+		
+		try {
+			serverThread.join();
+			for (Thread clientThread : clientThreads)
+				clientThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception when joining the client and server thread: " + e.getMessage());
+		}
+	}
+	
+	public void testT028BacklogOverflow() {
+		int serverIP = 1;
+		int serverPort = 80;
+		final IpAddress serverAddress = IpAddress.getAddress("192.168.0." + serverIP);
+		
+		// a server socket, which keeps only one connection until it is accepted
+		Socket serverSocket = null;
+		try {
+			serverSocket = new TCP(serverIP).socket(serverPort, 1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Error during server initialization: " + e.getMessage());
+		}
+		
+		// the first client fills the backlog (its write returns, once the server read the data)
+		final Socket firstClient = getClientSocket(2);
+		assertTrue(firstClient.connect(serverAddress, serverPort));
+		Thread firstClientThread = new Thread(new Runnable() {
+	        public void run() {
+	        	byte[] text = "first".getBytes();
+	        	assertEquals(text.length, firstClient.write(text, 0, text.length));
+	        }
+		});
+		firstClientThread.start();
+		
+		// the connection request of the second client is dropped, until the first connection is accepted
+		final Socket secondClient = getClientSocket(3);
+		Thread clientThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test client");
+	        	if (!secondClient.connect(serverAddress, 80)) {
+					fail("Failure during connect to server!");
+				}
+	        	byte[] text = "second".getBytes();
+	        	assertEquals(text.length, secondClient.write(text, 0, text.length));
+	        }
+		});
+		clientThread.start();
+		try {
+			Thread.sleep(300);
+		} catch (InterruptedException e) {
+			fail("Interrupted while waiting for the second client");
+		}
+		assertEquals(ConnectionState.S_SYN_SENT, secondClient.getTcpControlBlockForTesting().getConnectionStateForTesting());
+		
+		// the connections are accepted in the order, in which they were established
+		Socket connection = serverSocket.accept();
+		byte[] buf = new byte[6];
+		assertEquals(5, connection.read(buf, 0, 5));
+		assertEquals("first", new String(buf, 0, 5));
+		
+		// the first accept made room for the second client, whose connect resends the SYN
+		connection = serverSocket.accept();
+		assertEquals(6, connection.read(buf, 0, 6));
+		assertEquals("second", new String(buf, 0, 6));
+		
+		try {
+			firstClientThread.join();
+			clientThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception when joining the client thread: " + e.getMessage());
+		}
+		assertEquals(ConnectionState.S_ESTABLISHED, secondClient.getTcpControlBlockForTesting().getConnectionStateForTesting());
+	}
+	
+	public void testT029ConcurrentReadWrite() {
+		final int length = 100000;
+		
+		// START SERVER in a thread
+		Thread serverThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test server");
+	    
+	        	int serverIP = 1;
+	    		int serverPort = 80;
+				Socket serverSocket = getServerSocket(serverIP, serverPort);
+				
+				// listen at serverSocketListener and accept new incoming connections
+				serverSocket = serverSocket.accept();
+				
+				// read and write at the same time on the connection
+				Thread writer = startWriter(serverSocket, length, 1);
+				readAndVerify(serverSocket, length, 2);
+				joinThread(writer);
+				
+				// read again to answer the close of the client
+				serverSocket.read(new byte[1], 0, 1);
+				assertEquals(ConnectionState.S_CLOSED, serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
+	        }
+	    });
+		serverThread.start();
+		
+		
+		
+	    // START CLIENT in a thread
+		Thread clientThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test client");
+	    	    
+	        	int serverIP = 1;
+	        	int clientIP = 2;
+	        	int server_socket = 80;
+	        	
+				Socket clientSocket = getClientSocket(clientIP);
+				
+				// create server IP address and connect to server
+				IpAddress serverAddress = IpAddress.getAddress("192.168.0." + serverIP);
+				if (!clientSocket.connect(serverAddress, server_socket)) {
+					fail("Failure during connect to server!");
+				}
+				
+				// read and write at the same time on the connection
+				Thread writer = startWriter(clientSocket, length, 2);
+				readAndVerify(clientSocket, length, 1);
+				joinThread(writer);
+				
+				assertTrue(clientSocket.close());
+	        }
+		});
+		clientThread.start();
+		
+		
+		try {
+			serverThread.join();
+			clientThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception when joining the client and server thread: " + e.getMessage());
+		}
+	}
+	
+	public void testT030WindowScaling() {
+		final int length = 150000;
+		
+		// a window above 64 KB is advertised with the window scale option
+		// (the buffer is set before the client starts, since the server socket accepts connections right away)
+		final Socket serverListener = getServerSocket(1, 80);
+		assertTrue(serverListener.setReceiveBufferSize(200000));
+		
+		// START SERVER in a thread
+		Thread serverThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test server");
+	    
+				Socket serverSocket = serverListener.accept();
+				assertEquals(200000, serverSocket.getReceiveBufferSize());
+				assertEquals(2, serverSocket.getTcpControlBlockForTesting().getReceiveWindowShiftForTesting());
+				
+				readAndVerify(serverSocket, length, 3);
+				
+				// the answer advertises the empty buffer
+				assertEquals(1, serverSocket.write(new byte[] { 42 }, 0, 1));
+				
+				// read again to answer the close of the client
+				serverSocket.read(new byte[1], 0, 1);
+				assertEquals(ConnectionState.S_CLOSED, serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
+	        }
+	    });
+		serverThread.start();
+		
+		
+		
+	    // START CLIENT in a thread
+		Thread clientThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test client");
+	    	    
+	        	int serverIP = 1;
+	        	int clientIP = 2;
+	        	int server_socket = 80;
+	        	
+				Socket clientSocket = getClientSocket(clientIP);
+				
+				// create server IP address and connect to server
+				IpAddress serverAddress = IpAddress.getAddress("192.168.0." + serverIP);
+				if (!clientSocket.connect(serverAddress, server_socket)) {
+					fail("Failure during connect to server!");
+				}
+				
+				// the window of the server is shifted by 2 (200000 / 4 fits into the window field)
+				assertEquals(2, clientSocket.getTcpControlBlockForTesting().getSendWindowShiftForTesting());
+				
+				joinThread(startWriter(clientSocket, length, 3));
+				
+				// the scaled window of the answer is larger than the window field
+				byte[] answer = new byte[1];
+				assertEquals(1, clientSocket.read(answer, 0, 1));
+				assertEquals(200000, clientSocket.getTcpControlBlockForTesting().getRemoteWindowForTesting());
+				
+				assertTrue(clientSocket.close());
+	        }
+		});
+		clientThread.start();
+		
+		
+		try {
+			serverThread.join();
+			clientThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception when joining the client and server thread: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Starts a thread, which writes the given amount of bytes in pieces of
+	 * different sizes to the given socket (see readAndVerify).
+	 * 
+	 * @param socket
+	 * @param length
+	 * @param seed
+	 *            the start of the written bytes
+	 * @return the thread
+	 */
+	public static Thread startWriter(final Socket socket, final int length, final int seed) {
+		Thread writer = new Thread(new Runnable() {
+	        public void run() {
+	        	byte[] buf = new byte[length];
+	        	for (int i = 0; i < length; i++)
+	        		buf[i] = (byte) (seed + i);
+	        	int written = 0;
+	        	for (int piece = 1; written < length; piece = piece * 3 % 10007) {
+	        		int len = Math.min(piece, length - written);
+	        		assertEquals(len, socket.write(buf, written, len));
+	        		written += len;
+	        	}
+	        }
+		});
+		writer.start();
+		return writer;
+	}
+	
+	/**
+	 * Reads the given amount of bytes from the given socket and checks, that
+	 * they are the bytes of startWriter.
+	 * 
+	 * @param socket
+	 * @param length
+	 * @param seed
+	 *            the start of the written bytes
+	 */
+	public static void readAndVerify(Socket socket, int length, int seed) {
+		byte[] buf = new byte[length];
+		int received = 0;
+		while (received < length) {
+			int len = socket.read(buf, received, length - received);
+			if (len <= 0) {
+				fail("Failed to read a message from the other side!");
+			}
+			received += len;
+		}
+		for (int i = 0; i < length; i++) {
+			assertEquals((byte) (seed + i), buf[i]);
+		}
+	}
+	
+	/**
+	 * Waits for the given thread.
+	 * 
+	 * @param thread
+	 */
+	public static void joinThread(Thread thread) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception when joining a thread: " + e.getMessage());
+		}
+	}
 }
@@ -0,0 +1,60 @@
+package nl.vu.cs.cn.test;
+
+
+import nl.vu.cs.cn.CongestionControl;
+import nl.vu.cs.cn.NewRenoCongestionControl;
+import android.test.AndroidTestCase;
+
+
+import junit.framework.Assert;
+
+public class CongestionControlTest extends AndroidTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+	
+	
+	public void testT051NewRenoFastRecovery() {
+		CongestionControl cc = new NewRenoCongestionControl();
+		cc.init(1000);
+		Assert.assertEquals(2000, cc.getCongestionWindow());
+		
+		// slow start grows the window by the acknowledged bytes
+		cc.onAck(2000, 0);
+		Assert.assertEquals(4000, cc.getCongestionWindow());
+		
+		// three duplicate ACKs halve the window and inflate it by their packets
+		cc.onLoss(8000, 3);
+		Assert.assertEquals(7000, cc.getCongestionWindow());
+		cc.onDuplicateAck(8000);
+		Assert.assertEquals(8000, cc.getCongestionWindow());
+		
+		// the end of the recovery deflates the window to the slow start threshold
+		cc.onRecoveryEnd(3000);
+		Assert.assertEquals(4000, cc.getCongestionWindow());
+	}
+	
+	public void testT052NewRenoEarlyRetransmit() {
+		CongestionControl cc = new NewRenoCongestionControl();
+		cc.init(1000);
+		
+		// only two packets left the network (early retransmit of a short window)
+		cc.onLoss(8000, 2);
+		Assert.assertEquals(6000, cc.getCongestionWindow());
+	}
+	
+	public void testT053NewRenoTimeout() {
+		CongestionControl cc = new NewRenoCongestionControl();
+		cc.init(1000);
+		
+		// a timeout starts again with one packet
+		cc.onAck(2000, 0);
+		cc.onTimeout(4000);
+		Assert.assertEquals(1000, cc.getCongestionWindow());
+	}
+}
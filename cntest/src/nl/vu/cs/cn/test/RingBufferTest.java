@@ -0,0 +1,107 @@
+package nl.vu.cs.cn.test;
+
+
+import java.nio.ByteBuffer;
+
+import nl.vu.cs.cn.Checksum;
+import nl.vu.cs.cn.RingBuffer;
+import android.test.AndroidTestCase;
+
+
+import junit.framework.Assert;
+
+public class RingBufferTest extends AndroidTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+	
+	
+	private static byte[] createData(int len, int start) {
+		byte[] data = new byte[len];
+		for (int i = 0; i < len; i++)
+			data[i] = (byte) (start + i);
+		return data;
+	}
+	
+	
+	public void testT041ReadWrite() {
+		RingBuffer buffer = new RingBuffer(10);
+		
+		buffer.write(createData(6, 0), 0, 6);
+		Assert.assertEquals(6, buffer.size());
+		Assert.assertEquals(4, buffer.free());
+		
+		// a read returns at most the buffered bytes
+		byte[] result = new byte[10];
+		Assert.assertEquals(6, buffer.read(result, 2, 10));
+		for (int i = 0; i < 6; i++)
+			Assert.assertEquals((byte) i, result[2 + i]);
+		Assert.assertEquals(0, buffer.size());
+		Assert.assertEquals(10, buffer.free());
+	}
+	
+	public void testT042WrapAround() {
+		RingBuffer buffer = new RingBuffer(10);
+		byte[] result = new byte[10];
+		
+		// move the beginning of the buffered data to the middle of the buffer
+		buffer.write(createData(7, 0), 0, 7);
+		Assert.assertEquals(5, buffer.read(result, 0, 5));
+		
+		// these bytes wrap around the end of the buffer
+		buffer.write(createData(8, 7), 0, 8);
+		Assert.assertEquals(10, buffer.size());
+		Assert.assertEquals(0, buffer.free());
+		
+		Assert.assertEquals(10, buffer.read(result, 0, 10));
+		for (int i = 0; i < 10; i++)
+			Assert.assertEquals((byte) (5 + i), result[i]);
+	}
+	
+	public void testT043Overflow() {
+		RingBuffer buffer = new RingBuffer(10);
+		buffer.write(createData(8, 0), 0, 8);
+		
+		try {
+			buffer.write(createData(3, 0), 0, 3);
+			Assert.fail("Writing more than the free space must fail");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Assert.assertEquals(8, buffer.size());
+	}
+	
+	public void testT044StageCommit() {
+		RingBuffer buffer = new RingBuffer(10);
+		byte[] result = new byte[10];
+		buffer.write(createData(7, 0), 0, 7);
+		Assert.assertEquals(4, buffer.read(result, 0, 4));
+		
+		// 3 bytes fit before the end of the buffer, the other 2 wrap around,
+		// so the second part starts at an odd offset of the checksummed data
+		ByteBuffer src = ByteBuffer.wrap(createData(5, 0x37));
+		long sum = buffer.stage(src, 0, 5, 0);
+		Assert.assertEquals(Checksum.fold(Checksum.add(src, 0, 5, 0)), Checksum.fold(sum));
+		Assert.assertEquals(3, buffer.size());
+		
+		Assert.assertTrue(buffer.commit(5));
+		Assert.assertFalse(buffer.commit(5));
+		Assert.assertEquals(8, buffer.size());
+		Assert.assertEquals(8, buffer.read(result, 0, 10));
+		for (int i = 0; i < 3; i++)
+			Assert.assertEquals((byte) (4 + i), result[i]);
+		for (int i = 0; i < 5; i++)
+			Assert.assertEquals((byte) (0x37 + i), result[3 + i]);
+		
+		// the staged bytes are discarded by a write
+		buffer.stage(src, 0, 5, 0);
+		buffer.write(createData(2, 0), 0, 2);
+		Assert.assertFalse(buffer.commit(5));
+		Assert.assertEquals(2, buffer.size());
+	}
+}
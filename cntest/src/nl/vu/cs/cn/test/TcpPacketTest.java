@@ -2,7 +2,10 @@ package nl.vu.cs.cn.test;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
+import nl.vu.cs.cn.Checksum;
 import nl.vu.cs.cn.IP.IpAddress;
 import nl.vu.cs.cn.TCP;
 import nl.vu.cs.cn.TCP.TcpPacket;
@@ -99,6 +102,77 @@ public class TcpPacketTest extends AndroidTestCase {
 	
 
 
+	public void testT014ReceivedTcpOptions() {
+		TCP tcp = null;
+		try {
+			tcp = new TCP(1);
+		} catch (IOException e) {
+			Assert.fail("Exception during creation of TCP: " + e.getMessage());
+		}
+		
+		IpAddress sourceIp = IpAddress.getAddress("192.168.0.2");
+		IpAddress destinationIp = IpAddress.getAddress("192.168.0.1");
+		
+		// SYN packet with data offset 8: MSS=1460, NOP, window scale=7, NOP, NOP, SACK permitted
+		byte[] tcpData = hexStringToByteArray("d2f000501234567800000000" + "8002faf000000000" + "020405b4010303070101" + "0402");
+		TcpPacket tcpPacket = tcp.new TcpPacket(sourceIp.getAddress(), destinationIp.getAddress(), tcpData, tcpData.length);
+		assertTrue(tcpPacket.isSYN_Flag());
+		assertEquals(32, tcpPacket.getHeaderLength());
+		assertEquals(0, tcpPacket.getPayloadLength());
+		assertEquals(1460, tcpPacket.getMSSOption());
+		assertEquals(7, tcpPacket.getWindowScaleOption());
+		assertTrue(tcpPacket.isSACKPermitted());
+		
+		// ACK packet with data offset 8: NOP, NOP, SACK with the block 0xfffff000 - 0x00001000
+		tcpData = hexStringToByteArray("d2f000501234567800000000" + "8010faf000000000" + "0101050a" + "fffff00000001000");
+		tcpPacket = tcp.new TcpPacket(sourceIp.getAddress(), destinationIp.getAddress(), tcpData, tcpData.length);
+		assertEquals(32, tcpPacket.getHeaderLength());
+		assertEquals(1, tcpPacket.getSACKBlockCount());
+		assertEquals(0xfffff000L, tcpPacket.getSACKBlockEdge(0));
+		assertEquals(0x1000L, tcpPacket.getSACKBlockEdge(1));
+		
+		// data packet with data offset 6 (MSS option) and the payload "hello"
+		tcpData = hexStringToByteArray("d2f000501234567800000000" + "6010faf000000000" + "020405b4" + "68656c6c6f");
+		tcpPacket = tcp.new TcpPacket(sourceIp.getAddress(), destinationIp.getAddress(), tcpData, tcpData.length);
+		assertEquals(24, tcpPacket.getHeaderLength());
+		assertEquals(5, tcpPacket.getPayloadLength());
+		byte[] payload = new byte[5];
+		tcpPacket.getPayload(payload, 0);
+		assertEquals("hello", new String(payload));
+		
+		// packet without options
+		tcpData = hexStringToByteArray("dd810050334b9c1f38e0f8b65010ff37c4d20000");
+		tcpPacket = tcp.new TcpPacket(sourceIp.getAddress(), destinationIp.getAddress(), tcpData, tcpData.length);
+		assertEquals(20, tcpPacket.getHeaderLength());
+		assertEquals(-1, tcpPacket.getMSSOption());
+		assertEquals(-1, tcpPacket.getWindowScaleOption());
+		assertFalse(tcpPacket.isSACKPermitted());
+		assertEquals(0, tcpPacket.getSACKBlockCount());
+	}
+	
+	public void testT015ChecksumWordAtATime() {
+		byte[] data = new byte[67];
+		Random random = new Random(15);
+		random.nextBytes(data);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		
+		for (int length = 0; length <= data.length - 2; length++) {
+			// reference: 16 bit words, the odd byte is padded with a zero byte
+			long expected = 0;
+			for (int i = 0; i < length; i += 2) {
+				expected += (data[2 + i] & 0xFF) << 8;
+				if (i + 1 < length)
+					expected += data[2 + i + 1] & 0xFF;
+			}
+			assertEquals("length " + length, Checksum.fold(expected), Checksum.fold(Checksum.add(buffer, 2, length, 0)));
+			
+			// a sum over two parts, which are split at an even offset, is the same
+			int split = (length / 3) & ~1;
+			long parts = Checksum.add(buffer, 2 + split, length - split, Checksum.add(buffer, 2, split, 0));
+			assertEquals("length " + length, Checksum.fold(expected), Checksum.fold(parts));
+		}
+	}
+	
 	/*
 	public void testT013BasicTCPSendRecv() {
 		TCP tcp1 = null;
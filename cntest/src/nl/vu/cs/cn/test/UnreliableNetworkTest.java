@@ -1,5 +1,16 @@
 package nl.vu.cs.cn.test;
 
+import java.io.IOException;
+
+import nl.vu.cs.cn.BBRCongestionControl;
+import nl.vu.cs.cn.CongestionControl;
+import nl.vu.cs.cn.ConnectionState;
+import nl.vu.cs.cn.Logging;
+import nl.vu.cs.cn.NewRenoCongestionControl;
+import nl.vu.cs.cn.TCP;
+import nl.vu.cs.cn.TcpMetrics;
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TCP.Socket;
 import nl.vu.cs.nc.test.PacketLossControl;
 import android.test.AndroidTestCase;
 
@@ -8,6 +19,9 @@ public class UnreliableNetworkTest extends AndroidTestCase {
 
 	protected void setUp() throws Exception {
 		super.setUp();
+		// log the connection information and the state of each connection
+		Logging.getInstance().setLevel(Logging.Level.INFO);
+		Logging.getInstance().setDetailedLogging(true);
 	}
 
 	protected void tearDown() throws Exception {
@@ -69,7 +83,158 @@ public class UnreliableNetworkTest extends AndroidTestCase {
 	
 		ClientServerTest.runClientServerCommunication();
 	}
+	
+	public void testT037FastRetransmit() {
+		
+		// the second data packet should be lost: the packets behind it cause duplicate ACKs
+		PacketLossControl.getInstance().SetDataPacketsLost(2);
+		
+		// the retransmission timeout is far longer than the transfer takes with a fast retransmit
+		long start = System.currentTimeMillis();
+		Socket clientSocket = runTransfer(8 * 8152, 2000);
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		
+		// the lost packet was resent once, without a timeout
+		TcpMetrics metrics = clientSocket.getMetrics();
+		assertEquals(1, metrics.getRetransmissions());
+		assertEquals(0, metrics.getTimeouts());
+	}
+
+	public void testT038SelectiveAcknowledgements() {
+		
+		// three data packets of the same window should be lost (after slow start opened the window)
+		PacketLossControl.getInstance().SetDataPacketsLost(20, 22, 24);
+		
+		// the SACK blocks report all of them, so they are resent without a timeout
+		long start = System.currentTimeMillis();
+		Socket clientSocket = runTransfer(40 * 8152, 2000);
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		
+		TcpMetrics metrics = clientSocket.getMetrics();
+		assertEquals(3, metrics.getRetransmissions());
+		assertEquals(0, metrics.getTimeouts());
+	}
+
+	public void testT039NewRenoFastRecovery() {
+		
+		// two adjacent data packets should be lost
+		PacketLossControl.getInstance().SetDataPacketsLost(20, 21);
+		
+		// NewReno resends the first after the duplicate ACKs and the second after the partial ACK
+		long start = System.currentTimeMillis();
+		Socket clientSocket = runTransfer(40 * 8152, 2000);
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		assertTrue(clientSocket.getCongestionControl() instanceof NewRenoCongestionControl);
+		
+		TcpMetrics metrics = clientSocket.getMetrics();
+		assertEquals(2, metrics.getRetransmissions());
+		assertEquals(0, metrics.getTimeouts());
+	}
 
+	public void testT040BBRLossyTransfer() {
+		
+		// data packets of different windows should be lost
+		PacketLossControl.getInstance().SetDataPacketsLost(20, 21, 40);
+		
+		// BBR paces the packets and does not shrink its window, the losses are resent all the same
+		long start = System.currentTimeMillis();
+		Socket clientSocket = runTransfer(60 * 8152, 2000, new BBRCongestionControl());
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		assertTrue(clientSocket.getCongestionControl() instanceof BBRCongestionControl);
+		
+		// the lost packets never left the client, so the sent bytes are the data once
+		TcpMetrics metrics = clientSocket.getMetrics();
+		assertEquals(60 * 8152, metrics.getBytesSent());
+		assertEquals(3, metrics.getRetransmissions());
+		assertEquals(0, metrics.getTimeouts());
+	}
+
+	
+	/**
+	 * Creates a client and a server, transfers the given amount of bytes
+	 * from the client to the server in one write, checks the received data
+	 * and closes the connection.
+	 * 
+	 * @param length
+	 *            the amount of bytes
+	 * @param minRTO
+	 *            the lower bound of the retransmission timeout of the client (in ms)
+	 * @return the socket of the client
+	 */
+	public static Socket runTransfer(final int length, long minRTO) {
+		return runTransfer(length, minRTO, null);
+	}
 	
+	/**
+	 * Like runTransfer(length, minRTO), but the client uses the given
+	 * congestion control algorithm.
+	 * 
+	 * @param length
+	 *            the amount of bytes
+	 * @param minRTO
+	 *            the lower bound of the retransmission timeout of the client (in ms)
+	 * @param congestionControl
+	 *            the algorithm of the client, or null for the default
+	 * @return the socket of the client
+	 */
+	public static Socket runTransfer(final int length, long minRTO, CongestionControl congestionControl) {
+		final int serverIP = 1;
+		final int serverPort = 80;
+		
+		// the server socket exists before the client starts, so the SYN is not resent
+		final Socket serverListener = ClientServerTest.getServerSocket(serverIP, serverPort);
+		
+		// START SERVER in a thread
+		Thread serverThread = new Thread(new Runnable() {
+	        public void run() {
+	        	Logging.getInstance().LogConnectionInformation(null, "test server");
+	        	
+				// listen at serverSocketListener and accept new incoming connections
+				Socket serverSocket = serverListener.accept();
+				
+				ClientServerTest.readAndVerify(serverSocket, length, 0);
+				
+				// read again to answer the close of the client
+				serverSocket.read(new byte[1], 0, 1);
+				assertEquals(ConnectionState.S_CLOSED, serverSocket.getTcpControlBlockForTesting().getConnectionStateForTesting());
+	        }
+	    });
+		serverThread.start();
+		
+		
+		// the CLIENT
+		Logging.getInstance().LogConnectionInformation(null, "test client");
+		TCP tcpClient = null;
+		try {
+			tcpClient = new TCP(2);
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Error during client initialization: " + e.getMessage());
+		}
+		tcpClient.setRetransmissionTimeoutBounds(minRTO, 60000);
+		Socket clientSocket = tcpClient.socket();
+		if (congestionControl != null)
+			assertTrue(clientSocket.setCongestionControl(congestionControl));
+		
+		// create server IP address and connect to server
+		IpAddress serverAddress = IpAddress.getAddress("192.168.0." + serverIP);
+		if (!clientSocket.connect(serverAddress, serverPort)) {
+			fail("Failure during connect to server!");
+		}
+		
+		byte[] buf = new byte[length];
+		for (int i = 0; i < length; i++)
+			buf[i] = (byte) i;
+		assertEquals(length, clientSocket.write(buf, 0, length));
+		assertTrue(clientSocket.close());
+		
+		try {
+			serverThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			fail("Exception when joining the server thread: " + e.getMessage());
+		}
+		return clientSocket;
+	}
 	
 }